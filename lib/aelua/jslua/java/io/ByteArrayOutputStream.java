@@ -17,37 +17,49 @@ package java.io;
 
 public class ByteArrayOutputStream extends OutputStream {
 
-//  protected int count;
-//  protected byte[] buf;
+  protected int count;
+  protected byte[] buf;
  
   public ByteArrayOutputStream() {
-//    this(16);
+    this(16);
   }
   
   public ByteArrayOutputStream(int initialSize) {
-//    buf = new byte[initialSize];
+    buf = new byte[initialSize];
   }
   
-//  @Override
-  public void write(int b) {
-/*    if (buf.length == count) {
-      byte[] newBuf = new byte[buf.length * 3 / 2];
+  private void ensure(int n) {
+    if (count + n > buf.length) {
+      byte[] newBuf = new byte[Math.max(buf.length * 3 / 2, count + n)];
       System.arraycopy(buf, 0, newBuf, 0, count);
       buf = newBuf;
     }
-    
+  }
+
+//  @Override
+  public void write(int b) {
+    ensure(1);
     buf[count++] = (byte) b;
-*/
+  }
+
+  public void write(byte[] b, int off, int len) {
+    ensure(len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  public void reset() {
+    count = 0;
   }
   
   public byte[] toByteArray() {
-    byte[] result = new byte[1];
-//    System.arraycopy(buf, 0, result, 0, count);
+    byte[] result = new byte[count];
+    System.arraycopy(buf, 0, result, 0, count);
     return result;
   }
 
   
   public int size() {
-    return 1;
+    return count;
   }
 }
@@ -19,30 +19,30 @@ package java.io;
 
 public class DataOutputStream extends OutputStream implements DataOutput {
 
-//  OutputStream os;
+  OutputStream os;
   
   public DataOutputStream (OutputStream os) {
-//    this.os = os;
+    this.os = os;
   }
   
 //  @Override
   public void write(int b) throws IOException {
-//    os.write(b);
+    os.write(b);
   }
 
   public void write(byte[] b,int i,int j) throws IOException {
-//    os.write(b);
+    os.write(b, i, j);
   }
   public void write(byte[] b) throws IOException {
-//    os.write(b);
+    os.write(b, 0, b.length);
   }
   
   public void writeBoolean(boolean v) throws IOException {
- //   os.write(v ? 1 : 0); 
+    os.write(v ? 1 : 0);
   }
 
   public void writeByte(int v) throws IOException {
- //   os.write(v);
+    os.write(v);
   }
 
   public void writeBytes(String s) throws IOException {
@@ -70,20 +70,20 @@ public class DataOutputStream extends OutputStream implements DataOutput {
   }
 
   public void writeInt(int v) throws IOException {
-//    os.write(v >> 24);
-//    os.write(v >> 16);
-//    os.write(v >> 8);
-//    os.write(v);
+    os.write(v >> 24);
+    os.write(v >> 16);
+    os.write(v >> 8);
+    os.write(v);
   }
 
   public void writeLong(long v) throws IOException {
-//    writeInt((int) (v >> 32L));
-//    writeInt((int) v);
+    writeInt((int) (v >> 32L));
+    writeInt((int) v);
   }
 
   public void writeShort(int v) throws IOException {
-//    os.write(v >> 8);
-//    os.write(v);
+    os.write(v >> 8);
+    os.write(v);
   }
 
   public void writeUTF(String s) throws IOException {
@@ -106,5 +106,6 @@ public class DataOutputStream extends OutputStream implements DataOutput {
 */
   }
   public void flush() throws IOException {
- }
+    os.flush();
+  }
 }
@@ -14,6 +14,19 @@ public abstract class Reader {
   {
 	  return 0;
   }
+
+  public int read(char[] buf, int start, int len) throws IOException
+  {
+    int end = start + len;
+    for (int i = start; i < end; i++) {
+      int r = read();
+      if (r == -1) {
+        return i == start ? -1 : i - start;
+      }
+      buf[i] = (char) r;
+    }
+    return len;
+  }
   
   public boolean markSupported()
   {
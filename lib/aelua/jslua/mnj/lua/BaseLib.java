@@ -215,57 +215,64 @@ public final class BaseLib extends LuaJavaCallback
     L.setGlobal("_G", L.getGlobals());
     // set global _VERSION
     L.setGlobal("_VERSION", Lua.VERSION);
-    r(L, "assert", ASSERT);
-    r(L, "collectgarbage", COLLECTGARBAGE);
-    r(L, "dofile", DOFILE);
-    r(L, "error", ERROR);
-    r(L, "gcinfo", GCINFO);
-    r(L, "getfenv", GETFENV);
-    r(L, "getmetatable", GETMETATABLE);
-    r(L, "ipairs", IPAIRS);
-    r(L, "loadfile", LOADFILE);
-    r(L, "load", LOAD);
-    r(L, "loadstring", LOADSTRING);
-    r(L, "next", NEXT);
-    r(L, "pairs", PAIRS);
-    r(L, "pcall", PCALL);
-    r(L, "print", PRINT);
-    r(L, "rawequal", RAWEQUAL);
-    r(L, "rawget", RAWGET);
-    r(L, "rawset", RAWSET);
-    r(L, "select", SELECT);
-    r(L, "setfenv", SETFENV);
-    r(L, "setmetatable", SETMETATABLE);
-    r(L, "tonumber", TONUMBER);
-    r(L, "tostring", TOSTRING);
-    r(L, "type", TYPE);
-    r(L, "unpack", UNPACK);
-    r(L, "xpcall", XPCALL);
-
-    L.register("coroutine");
-
-    c(L, "create", CREATE);
-    c(L, "resume", RESUME);
-    c(L, "running", RUNNING);
-    c(L, "status", STATUS);
-    c(L, "wrap", WRAP);
-    c(L, "yield", YIELD);
-  }
-
-  /** Register a function. */
-  private static void r(Lua L, String name, int which)
-  {
-    BaseLib f = new BaseLib(which);
-    L.setGlobal(name, f);
-  }
-
-  /** Register a function in the coroutine table. */
-  private static void c(Lua L, String name, int which)
-  {
-    BaseLib f = new BaseLib(which);
-    L.setField(L.getGlobal("coroutine"), name, f);
+    for (int i=0; i<BASE.length; i+=2)
+    {
+      L.setGlobal((String)BASE[i], BASE[i+1]);
+    }
+
+    L.register("coroutine").lazy(COROUTINE);
   }
 
+  /**
+   * Names and values of the base functions, alternately.  Apart from
+   * those made by coroutine.wrap, the function objects hold only their
+   * "which" code, so they are created once and shared by every Lua
+   * state.
+   */
+  private static final Object[] BASE =
+  {
+    "assert", new BaseLib(ASSERT),
+    "collectgarbage", new BaseLib(COLLECTGARBAGE),
+    "dofile", new BaseLib(DOFILE),
+    "error", new BaseLib(ERROR),
+    "gcinfo", new BaseLib(GCINFO),
+    "getfenv", new BaseLib(GETFENV),
+    "getmetatable", new BaseLib(GETMETATABLE),
+    "ipairs", new BaseLib(IPAIRS),
+    "loadfile", new BaseLib(LOADFILE),
+    "load", new BaseLib(LOAD),
+    "loadstring", new BaseLib(LOADSTRING),
+    "next", new BaseLib(NEXT),
+    "pairs", new BaseLib(PAIRS),
+    "pcall", new BaseLib(PCALL),
+    "print", new BaseLib(PRINT),
+    "rawequal", new BaseLib(RAWEQUAL),
+    "rawget", new BaseLib(RAWGET),
+    "rawset", new BaseLib(RAWSET),
+    "select", new BaseLib(SELECT),
+    "setfenv", new BaseLib(SETFENV),
+    "setmetatable", new BaseLib(SETMETATABLE),
+    "tonumber", new BaseLib(TONUMBER),
+    "tostring", new BaseLib(TOSTRING),
+    "type", new BaseLib(TYPE),
+    "unpack", new BaseLib(UNPACK),
+    "xpcall", new BaseLib(XPCALL),
+  };
+
+  /**
+   * Names and values of the coroutine library's functions.  The
+   * library table is filled in from this array when it is first used.
+   */
+  private static final Object[] COROUTINE =
+  {
+    "create", new BaseLib(CREATE),
+    "resume", new BaseLib(RESUME),
+    "running", new BaseLib(RUNNING),
+    "status", new BaseLib(STATUS),
+    "wrap", new BaseLib(WRAP),
+    "yield", new BaseLib(YIELD),
+  };
+
   /** Implements assert.  <code>assert</code> is a keyword in some
    * versions of Java, so this function has a mangled name.
    */
@@ -343,10 +350,8 @@ public final class BaseLib extends LuaJavaCallback
   /** Implements gcinfo. */
   private static int gcinfo(Lua L)
   {
-//    Runtime rt = Runtime.getRuntime();
-    L.push( 0);//new Double( (rt.totalMemory()-rt.freeMemory())/1024 ) );
-    L.push( 0);//new Double( rt.maxMemory()/1024 ) );
-    return 2;
+    L.pushNumber(L.gc(Lua.GCCOUNT, 0));
+    return 1;
   }
 
   /** Helper for getfenv and setfenv. */
@@ -439,15 +444,9 @@ public final class BaseLib extends LuaJavaCallback
   {
     String s = L.checkString(1);
     String chunkname = L.optString(2, s);
-    if (s.startsWith("\033"))
-    {
-      // "binary" dumped into string using string.dump.
-      return load_aux(L, L.load(new DumpedInput(s), chunkname));
-    }
-    else
-    {
-      return load_aux(L, L.loadString(s, chunkname));
-    }
+    // loadString also copes with "binary" dumped into string using
+    // string.dump.
+    return load_aux(L, L.loadString(s, chunkname));
   }
 
   private static int load_aux(Lua L, int status)
@@ -549,26 +548,46 @@ public final class BaseLib extends LuaJavaCallback
   private static int pcall(Lua L)
   {
     L.checkAny(1);
-    int status = L.pcall(L.getTop()-1, Lua.MULTRET, null);
-    boolean b = (status == 0);
-    L.insert(L.valueOfBoolean(b), 1);
-    return L.getTop();
+    return L.ypcall(L.getTop()-1, null);
   }
 
   /**
-   * The {@link PrintStream} used by print.  Makes it more convenient if
-   * redirection is desired.  For example, client code could implement
-   * their own instance which sent output to the screen of a JME device.
+   * The {@link PrintStream} written to by a state's default output
+   * sink, see {@link Lua#getOutput}.  To redirect print, set a
+   * different {@link OutputSink} on the state.
    */
   static final PrintStream OUT = System.out;
 
-  /** Implements print. */
+  /**
+   * Implements print.  The line is built in a buffer and written to
+   * the state's {@link OutputSink} in one go.
+   */
   private static int print(Lua L)
   {
     int n = L.getTop();
     Object tostring = L.getGlobal("tostring");
+    // When tostring is still this library's, strings, numbers,
+    // booleans and nil are converted here instead of by calling it.
+    boolean own = tostring instanceof BaseLib &&
+        ((BaseLib)tostring).which == TOSTRING;
+    StringBuffer b = new StringBuffer();
     for(int i=1; i<=n; ++i)
     {
+      if (i>1)
+      {
+        b.append('\t');
+      }
+      Object o = L.value(i);
+      if (own && (o instanceof String || o instanceof Double))
+      {
+        b.append(L.toString(o));
+        continue;
+      }
+      if (own && (o instanceof Boolean || o == Lua.NIL))
+      {
+        b.append(L.isNil(o) ? "nil" : (L.toBoolean(o) ? "true" : "false"));
+        continue;
+      }
       L.push(tostring);
       L.pushValue(i);
       L.call(1, 1);
@@ -577,14 +596,11 @@ public final class BaseLib extends LuaJavaCallback
       {
         return L.error("'tostring' must return a string to 'print'");
       }
-      if (i>1)
-      {
-        OUT.print('\t');
-      }
-      OUT.print(s);
+      b.append(s);
       L.pop(1);
     }
-    OUT.println();
+    b.append('\n');
+    L.getOutput().write(b.toString());
     return 0;
   }
 
@@ -691,16 +707,43 @@ public final class BaseLib extends LuaJavaCallback
     {
       String s = L.checkString(1);
       L.argCheck(2 <= base && base <= 36, 2, "base out of range");
-      // :todo: consider stripping space and sharing some code with
-      // Lua.vmTostring
-      try
+      // Like strtoul: optional space and sign, at least one digit, then
+      // nothing but space.
+      int n = s.length();
+      int i = 0;
+      while (i < n && Syntax.isspace(s.charAt(i)))
       {
-        int i = Integer.parseInt(s, base);
-        L.pushNumber(i);
-        return 1;
+        ++i;
       }
-      catch (NumberFormatException e_)
+      boolean neg = false;
+      if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
       {
+        neg = s.charAt(i) == '-';
+        ++i;
+      }
+      int d0 = i;
+      double r = 0;
+      for (; i < n; ++i)
+      {
+        int c = s.charAt(i);
+        int l = c | 0x20;        // lower case, for letters
+        int d = c >= '0' && c <= '9' ? c - '0' :
+            l >= 'a' && l <= 'z' ? l - 'a' + 10 : 99;
+        if (d >= base)
+        {
+          break;
+        }
+        r = r*base + d;
+      }
+      int e = i;
+      while (i < n && Syntax.isspace(s.charAt(i)))
+      {
+        ++i;
+      }
+      if (e > d0 && i == n)
+      {
+        L.pushNumber(neg ? -r : r);
+        return 1;
       }
     }
     L.push(L.NIL);
@@ -774,11 +817,7 @@ public final class BaseLib extends LuaJavaCallback
     {
       return 0;         // empty range
     }
-    // i already initialised to start index, which isn't necessarily 1
-    for (; i<=e; ++i)
-    {
-      L.push(t.getnum(i));
-    }
+    L.pushTable(t, i, n);
     return n;
   }
 
@@ -788,9 +827,7 @@ public final class BaseLib extends LuaJavaCallback
     L.checkAny(2);
     Object errfunc = L.value(2);
     L.setTop(1);        // remove error function from stack
-    int status = L.pcall(0, Lua.MULTRET, errfunc);
-    L.insert(L.valueOfBoolean(status == 0), 1);
-    return L.getTop();  // return status + all results
+    return L.ypcall(0, errfunc);        // status + all results
   }
 
   /** Implements coroutine.create. */
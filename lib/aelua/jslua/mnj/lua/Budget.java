@@ -0,0 +1,42 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package mnj.lua;
+
+/**
+ * Instruction budget of a Lua state, shared by its threads.  See
+ * {@link Lua#setInstructionBudget}.  The VM subtracts from {@link
+ * #left} at loop back-edges and calls, and only looks further when it
+ * goes below 0.
+ */
+final class Budget
+{
+  /** The budget set, or 0 for none. */
+  int size;
+  /**
+   * What is left of the budget.  Without a budget this is simply
+   * reset to <code>Integer.MAX_VALUE</code> whenever it runs out.
+   */
+  int left = Integer.MAX_VALUE;
+  /** Whether to yield, rather than raise an error, when it runs out. */
+  boolean yield;
+  /** Number of calls to {@link Lua#resume} in progress. */
+  int resumes;
+}
@@ -0,0 +1,75 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.io.PrintStream;
+
+/**
+ * An {@link OutputSink} that collects text and writes it to a {@link
+ * PrintStream} in batches, rather than a line at a time.  Text is
+ * written when the buffer is full and whenever the sink is flushed.
+ */
+public final class BufferedSink implements OutputSink
+{
+  private PrintStream out;
+  private int size;
+  private StringBuffer b = new StringBuffer();
+
+  /**
+   * Makes a sink with an 8K buffer.
+   * @param out  the stream to write to.
+   */
+  public BufferedSink(PrintStream out)
+  {
+    this(out, 8192);
+  }
+
+  /**
+   * Makes a sink.
+   * @param out   the stream to write to.
+   * @param size  the number of characters to collect before writing.
+   */
+  public BufferedSink(PrintStream out, int size)
+  {
+    this.out = out;
+    this.size = size;
+  }
+
+  public void write(String s)
+  {
+    b.append(s);
+    if (b.length() >= size)
+    {
+      flush();
+    }
+  }
+
+  public void flush()
+  {
+    if (b.length() > 0)
+    {
+      out.print(b.toString());
+      b.setLength(0);
+    }
+    out.flush();
+  }
+}
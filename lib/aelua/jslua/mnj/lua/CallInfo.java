@@ -32,6 +32,14 @@ final class CallInfo
   private int top;
   private int nresults;
   private int tailcalls;
+  /**
+   * Whether this is a call of pcall or xpcall whose function is run by
+   * the VM, see {@link Lua#ypcall}; and if so what to restore when it
+   * finishes.
+   */
+  private boolean pcall;
+  private Object errfunc;
+  private boolean allowhook;
 
   /** Only used to create the first instance. */
   CallInfo()
@@ -123,6 +131,36 @@ final class CallInfo
     return tailcalls;
   }
 
+  /**
+   * Marks this as a call of pcall whose function is run by the VM.
+   * @param errfunc    the error handler to restore.
+   * @param allowhook  the allowhook to restore after an error.
+   */
+  void setPcall(Object errfunc, boolean allowhook)
+  {
+    this.pcall = true;
+    this.errfunc = errfunc;
+    this.allowhook = allowhook;
+  }
+
+  /** Whether this is a call of pcall whose function is run by the VM. */
+  boolean pcall()
+  {
+    return pcall;
+  }
+
+  /** Error handler to restore, for a pcall. */
+  Object errfunc()
+  {
+    return errfunc;
+  }
+
+  /** allowhook to restore, for a pcall. */
+  boolean allowhook()
+  {
+    return allowhook;
+  }
+
   /**
    * Used during tailcall to set the base and top members.
    */
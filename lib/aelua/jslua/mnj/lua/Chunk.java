@@ -0,0 +1,168 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * A compiled Lua chunk that is not tied to any Lua state.  A chunk is
+ * compiled (or undumped) once and can then be instantiated, as a
+ * {@link LuaFunction}, into any number of Lua states; each instance
+ * gets the state's global table as its environment.
+ * <p>
+ * The VM keeps no inline caches or other per-function side data in
+ * the compiled form (the tree of <code>Proto</code> objects), so a
+ * chunk may be shared between states.  It is not safe to share
+ * between Java threads, on hosts that have them: a chunk loaded with
+ * lazy decoding (see {@link #load(InputStream, String, boolean)})
+ * decodes its nested functions when they are first instantiated,
+ * without synchronisation.  Such a host must confine each chunk to one
+ * thread.
+ * </p>
+ */
+public final class Chunk
+{
+  private static final UpVal[] NO_UPVAL = new UpVal[0];
+
+  private final Proto p;
+
+  Chunk(Proto p)
+  {
+    this.p = p;
+  }
+
+  /**
+   * Compiles a chunk held in a string.  Binary chunks (as produced by
+   * <code>string.dump</code>) are undumped.
+   * @param s          the chunk.
+   * @param chunkname  the name of the chunk.
+   * @param optimise   whether to run the bytecode optimiser (see
+   *                   {@link Lua#setOptimise}).
+   * @return the compiled chunk.
+   * @throws IOException if the chunk is malformed; the message is the
+   * Lua error message.
+   */
+  public static Chunk compile(String s, String chunkname, boolean optimise)
+      throws IOException
+  {
+    if (s.length() > 0 && s.charAt(0) == Loader.HEADER[0])
+    {
+      return new Chunk(new Loader(s, chunkname).undump());
+    }
+    return compile(new StringReader(s), chunkname, optimise);
+  }
+
+  /**
+   * Compiles a source chunk.
+   * @param in         the source.
+   * @param chunkname  the name of the chunk.
+   * @param optimise   whether to run the bytecode optimiser.
+   * @return the compiled chunk.
+   * @throws IOException if <var>in</var> does, or if the chunk is not
+   * valid Lua; in that case the message is the Lua error message.
+   */
+  public static Chunk compile(Reader in, String chunkname, boolean optimise)
+      throws IOException
+  {
+    try
+    {
+      return new Chunk(Syntax.parser(in, chunkname, optimise));
+    }
+    catch (SyntaxError e)
+    {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * Compiles a batch of chunks held in strings.  The compilations are
+   * independent of one another.
+   * @return the compiled chunks, in the same order.
+   * @throws IOException for the first chunk that fails to compile.
+   * @see Lua#loadStrings
+   */
+  public static Chunk[] compile(String[] s, String[] chunkname,
+      boolean optimise) throws IOException
+  {
+    Chunk[] c = new Chunk[s.length];
+    for (int i=0; i<s.length; ++i)
+    {
+      c[i] = compile(s[i], chunkname[i], optimise);
+    }
+    return c;
+  }
+
+  /**
+   * Loads a binary chunk.
+   * @param in         the binary chunk.
+   * @param chunkname  the name of the chunk.
+   * @return the loaded chunk.
+   * @throws IOException if the chunk is malformed or <var>in</var>
+   * fails.
+   */
+  public static Chunk load(InputStream in, String chunkname)
+      throws IOException
+  {
+    return load(in, chunkname, false);
+  }
+
+  /**
+   * Loads a binary chunk, optionally decoding its nested functions
+   * only when they are first instantiated (see {@link
+   * Lua#setLazyLoad}).
+   * @param in         the binary chunk.
+   * @param chunkname  the name of the chunk.
+   * @param lazy       true to decode nested functions on demand.
+   * @return the loaded chunk.
+   * @throws IOException if the chunk is malformed or <var>in</var>
+   * fails.
+   */
+  public static Chunk load(InputStream in, String chunkname, boolean lazy)
+      throws IOException
+  {
+    return new Chunk(new Loader(in, chunkname).undump(lazy, false));
+  }
+
+  /**
+   * Dumps the chunk in binary form, as <code>string.dump</code> does.
+   * @param writer  the stream that receives the dumped binary.
+   * @throws IOException when writer does.
+   */
+  public void dump(OutputStream writer) throws IOException
+  {
+    Lua.uDump(p, writer, false);
+  }
+
+  /**
+   * Instantiates the chunk into a Lua state.  The function is not
+   * pushed.
+   * @param L  the state.
+   * @return a function whose environment is the state's global table.
+   */
+  public LuaFunction instantiate(Lua L)
+  {
+    return new LuaFunction(p, NO_UPVAL, L.getGlobals());
+  }
+}
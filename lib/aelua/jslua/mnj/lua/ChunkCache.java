@@ -0,0 +1,185 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Cache of compiled chunks.  Source chunks loaded with {@link
+ * Lua#loadString} by a state that has a cache (see {@link
+ * Lua#setChunkCache}) are compiled once; the compiled form is dumped
+ * (as by <code>string.dump</code>) and stored against a key derived
+ * from the chunkname, a hash of the source text and whether the
+ * optimiser was run.  Subsequent loads of the same text undump the
+ * stored binary chunk instead of running the compiler.
+ * <p>
+ * The default implementation keeps the binary chunks in memory.
+ * The GWT environment has no file system so persistence is left to
+ * subclasses: override {@link #get} and {@link #put} to store the
+ * chunks somewhere durable (a cache directory, one file per key, for
+ * example).  Keys consist only of hex digits and <code>'-'</code>
+ * so they can be used directly as file names.
+ * </p>
+ * <p>
+ * Keys are not unique: sources whose hashes collide, which can be
+ * made deliberately, share a key.  So {@link #get} must only return a
+ * chunk stored for the same source text.  The default implementation
+ * keeps the source with each chunk and compares it; a subclass must
+ * do the same, or store the chunks under a strong digest (such as
+ * SHA-256) of the source, or else a crafted script could be given
+ * another script's compiled code.
+ * </p>
+ * <p>
+ * Stored chunks are also validated when they are loaded: the chunk
+ * header must be acceptable to the loader and the recorded source name
+ * must match the chunkname.  An entry that fails validation is
+ * discarded (by calling {@link #put} with <code>null</code>) and the
+ * source is recompiled.
+ * </p>
+ */
+public class ChunkCache
+{
+  /** Map from key to CacheEntry. */
+  private HashMap chunk = new HashMap();
+
+  /**
+   * Fetches a previously stored binary chunk.
+   * @param key     the key, as computed by {@link #key}.
+   * @param source  the source text the chunk must have been compiled
+   *                from.
+   * @return the binary chunk, or <code>null</code> if there is none
+   * for this source.
+   */
+  protected byte[] get(String key, String source)
+  {
+    CacheEntry e = (CacheEntry)chunk.get(key);
+    if (e == null || !e.source.equals(source))
+    {
+      return null;
+    }
+    return e.value;
+  }
+
+  /**
+   * Stores a binary chunk.
+   * @param key     the key, as computed by {@link #key}.
+   * @param source  the source text the chunk was compiled from.
+   * @param value   the binary chunk, or <code>null</code> to remove
+   *                the entry.
+   */
+  protected void put(String key, String source, byte[] value)
+  {
+    if (value == null)
+    {
+      chunk.remove(key);
+    }
+    else
+    {
+      chunk.put(key, new CacheEntry(source, value));
+    }
+  }
+
+  /** Discards every entry held in memory. */
+  public void clear()
+  {
+    chunk.clear();
+  }
+
+  /**
+   * Computes the cache key for a source chunk.  The key combines two
+   * independent 32-bit hashes of the source text (Java's
+   * <code>String.hashCode</code> and FNV-1a), its length, a hash of
+   * the chunkname, and the optimiser setting (see {@link
+   * Lua#setOptimise}), which changes the compiled code.
+   */
+  public static String key(String source, String chunkname,
+      boolean optimise)
+  {
+    int fnv = 0x811c9dc5;
+    int n = source.length();
+    for (int i=0; i<n; ++i)
+    {
+      fnv = (fnv ^ source.charAt(i)) * 0x01000193;
+    }
+    return Integer.toHexString(source.hashCode()) + '-' +
+        Integer.toHexString(fnv) + '-' +
+        Integer.toHexString(n) + '-' +
+        Integer.toHexString(chunkname.hashCode()) + '-' +
+        (optimise ? '1' : '0');
+  }
+
+  /**
+   * Compiles a source chunk, or loads it from the cache, using the
+   * compiler and loader settings of <var>L</var> (see {@link
+   * Lua#setOptimise}, {@link Lua#setLazyLoad} and {@link
+   * Lua#setStripDebug}).  The cache always holds full debug info.
+   * @throws IOException if the compiled chunk cannot be dumped.
+   */
+  Proto compile(String source, String chunkname, Lua L)
+      throws IOException
+  {
+    String key = key(source, chunkname, L.optimise());
+    byte[] b = get(key, source);
+    if (b != null)
+    {
+      try
+      {
+        Proto p = new Loader(b, 0, b.length, chunkname).undump(
+            L.lazyLoad(), L.stripDebug());
+        if (chunkname.equals(p.source))
+        {
+          return p;
+        }
+      }
+      catch (IOException e_)
+      {
+        // Fall through and recompile.
+      }
+      put(key, source, null);
+    }
+    Proto p = Syntax.parser(new StringReader(source), chunkname,
+        L.optimise());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Lua.uDump(p, out, false);
+    put(key, source, out.toByteArray());
+    if (L.stripDebug())
+    {
+      p.strip();
+    }
+    return p;
+  }
+}
+
+/** A binary chunk in a {@link ChunkCache}, and its source. */
+final class CacheEntry
+{
+  final String source;
+  final byte[] value;
+
+  CacheEntry(String source, byte[] value)
+  {
+    this.source = source;
+    this.value = value;
+  }
+}
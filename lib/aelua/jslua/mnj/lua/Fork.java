@@ -0,0 +1,165 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.util.HashMap;
+
+/**
+ * The copying done by {@link Lua#fork}.  Maps each object of the
+ * template state that the fork has reached to its copy, so that
+ * sharing and cycles among the template's objects are reproduced
+ * among the copies.
+ * <p>
+ * Tables are copied lazily: {@link #table} returns an empty table
+ * that remembers its original, and {@link LuaTable} copies the
+ * contents across, through {@link #value}, the first time the table
+ * is used.  So forking costs almost nothing, and each fork only pays
+ * for the tables it touches.  Lua functions are copied when they are
+ * reached, with copies of their upvalues and environment.  Userdata
+ * are copied with the same Java object, and Java functions that
+ * refer to tables copy themselves (see {@link
+ * LuaJavaCallback#fork}).  Strings, numbers, booleans and threads
+ * other than the main thread are shared.
+ * </p>
+ * <p>
+ * Host code only sees a Fork in {@link LuaJavaCallback#fork}, to get
+ * the fork's copies of the values its function refers to.
+ * </p>
+ */
+public final class Fork
+{
+  /** Main thread of the template, and of the fork. */
+  private final Lua from;
+  private final Lua to;
+  /** Map from each template object copied so far to its copy. */
+  private final HashMap map = new HashMap();
+
+  Fork(Lua from, Lua to)
+  {
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * The fork's copy of a table, or null if <var>t</var> is null.  The
+   * copy is filled in when it is first used.
+   * @param t  a table of the template state.
+   * @return its copy.
+   */
+  public LuaTable table(LuaTable t)
+  {
+    if (t == null)
+    {
+      return null;
+    }
+    LuaTable r = (LuaTable)map.get(t);
+    if (r == null)
+    {
+      r = new LuaTable(t, this);
+      map.put(t, r);
+    }
+    return r;
+  }
+
+  /**
+   * The fork's copy of any Lua value.
+   * @param o  a value of the template state.
+   * @return its copy, or <var>o</var> itself if it is shared.
+   */
+  public Object value(Object o)
+  {
+    if (o instanceof LuaTable)
+    {
+      return table((LuaTable)o);
+    }
+    if (o instanceof LuaFunction)
+    {
+      return function((LuaFunction)o);
+    }
+    if (o instanceof LuaJavaCallback)
+    {
+      Object r = map.get(o);
+      if (r == null)
+      {
+        r = ((LuaJavaCallback)o).fork(this);
+        if (r != o)
+        {
+          map.put(o, r);
+        }
+      }
+      return r;
+    }
+    if (o instanceof LuaUserdata)
+    {
+      return userdata((LuaUserdata)o);
+    }
+    if (o == from)
+    {
+      return to;
+    }
+    return o;
+  }
+
+  private LuaFunction function(LuaFunction f)
+  {
+    LuaFunction r = (LuaFunction)map.get(f);
+    if (r == null)
+    {
+      UpVal[] up = new UpVal[f.proto().nups()];
+      r = new LuaFunction(f.proto(), up, table(f.getEnv()));
+      // Recorded before the upvalues are copied, as they may refer
+      // back to the function.
+      map.put(f, r);
+      for (int i=0; i<up.length; ++i)
+      {
+        up[i] = upval(f.upVal(i));
+      }
+    }
+    return r;
+  }
+
+  private UpVal upval(UpVal u)
+  {
+    UpVal r = (UpVal)map.get(u);
+    if (r == null)
+    {
+      // Always closed; the fork has nothing on its stack.
+      r = new UpVal(-1, new Slot());
+      map.put(u, r);
+      r.setValue(value(u.getValue()));
+    }
+    return r;
+  }
+
+  private LuaUserdata userdata(LuaUserdata u)
+  {
+    LuaUserdata r = (LuaUserdata)map.get(u);
+    if (r == null)
+    {
+      r = new LuaUserdata(u.getUserdata());
+      map.put(u, r);
+      r.setMetatable(table(u.getMetatable()));
+      r.setEnv(table(u.getEnv()));
+    }
+    return r;
+  }
+}
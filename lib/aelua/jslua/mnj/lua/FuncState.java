@@ -52,9 +52,6 @@ final class FuncState
   /** Lexical state. */
   Syntax ls;
 
-  /** Lua state. */
-  Lua L;
-
   /** chain of current blocks */
   BlockCnt bl;  // = null;
 
@@ -95,7 +92,6 @@ final class FuncState
   FuncState(Syntax ls)
   {
     f = new Proto(ls.source, 2); // default value for maxstacksize=2
-    L = ls.L ;
     this.ls = ls;
     //    prev = ls.linkfs(this);
   }
@@ -109,7 +105,12 @@ final class FuncState
     f.closeP(np);
     f.closeLocvars(nlocvars);
     f.closeUpvalues();
-    boolean checks = L.gCheckcode(f);
+    if (ls.optimise)
+    {
+      Optimiser.optimise(f);
+    }
+    boolean checks = Lua.gCheckcode(f);
+    f.close();
     //# assert checks
     //# assert bl == null
   }
@@ -144,7 +145,7 @@ final class FuncState
   {
     dischargejpc();
     // Put new instruction in code array.
-    f.codeAppend(L, pc, i, line);
+    f.codeAppend(pc, i, line);
     return pc++;
   }
 
@@ -291,7 +292,7 @@ final class FuncState
   /** Equivalent to luaK_numberK. */
   int kNumberK(double r)
   {
-    return addk(L.valueOfNumber(r));
+    return addk(Lua.valueOfNumber(r));
   }
 
   /** Equivalent to luaK_posfix. */
@@ -480,7 +481,7 @@ final class FuncState
             return false;  /* do not attempt to divide by 0 */
           r = v1 % v2;
           break;
-      case Lua.OP_POW: r = L.iNumpow(v1, v2); break;
+      case Lua.OP_POW: r = Lua.iNumpow(v1, v2); break;
       case Lua.OP_UNM: r = -v1; break;
       case Lua.OP_LEN: return false;  /* no constant folding for 'len' */
       default:
@@ -0,0 +1,190 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+/**
+ * Approximate memory accounting for a Lua state and its threads.  The
+ * state adds an estimate of each thing it allocates (tables and their
+ * growth, strings it builds, closures, threads, stack) to {@link
+ * #count}, and <code>collectgarbage("collect")</code> replaces the
+ * count with an estimate of what is still reachable, found by {@link
+ * #measure}.  This is what <code>collectgarbage("count")</code>
+ * reports.  The sizes are rough figures for a 32-bit JVM; what is
+ * allocated in Java without the state's knowledge (by host code,
+ * say) is not counted.  The estimate is checked against {@link
+ * #limit} (see {@link Lua#setMemoryLimit}).
+ */
+final class Heap
+{
+  // Estimated sizes in bytes.
+  static final int TABLE = 64;
+  /** Per entry in a table's hash part, including a boxed key. */
+  static final int ENTRY = 40;
+  /** Per element of a table's array part. */
+  static final int ELEMENT = 8;
+  /** Plus 2 per character. */
+  static final int STRING = 40;
+  /** Plus {@link #UPVAL} per upvalue. */
+  static final int FUNCTION = 32;
+  static final int UPVAL = 24;
+  static final int USERDATA = 32;
+  /** Plus {@link #STACKSLOT} per stack slot. */
+  static final int THREAD = 256;
+  static final int STACKSLOT = 32;
+  static final int OBJECT = 16;
+
+  /** Estimated number of bytes in use. */
+  long count;
+  /** What was reachable when last measured, in bytes. */
+  long measured;
+  /** Memory limit in bytes, or 0 for none. */
+  long limit;
+
+  /** Objects reached so far by {@link #measure}. */
+  private HashMap seen;
+  /** Objects reached but not yet looked at. */
+  private Vector work;
+  /** Size of the strings reached, which are not put in work. */
+  private long strings;
+
+  /**
+   * Estimates the size of everything reachable from a state: its
+   * globals, registry, type metatables and stack, and whatever those
+   * lead to.
+   * @param L  the state.
+   * @return the estimate in bytes.
+   */
+  long measure(Lua L)
+  {
+    long size = walk(L);
+    seen = null;
+    return size;
+  }
+
+  /**
+   * Removes from <var>v</var> those of its elements that are not
+   * reachable from <var>L</var>, and returns them, most recently added
+   * last.  Also replaces {@link #count} with an estimate of what is
+   * reachable, as {@link #measure} does.
+   * @param L  the state.
+   * @param v  a Vector of objects.
+   * @return the unreachable objects.
+   */
+  Vector unreachable(Lua L, Vector v)
+  {
+    count = walk(L);
+    Vector r = new Vector();
+    for (int i=0; i<v.size(); )
+    {
+      Object o = v.elementAt(i);
+      if (seen.containsKey(o))
+      {
+        ++i;
+      }
+      else
+      {
+        r.addElement(o);
+        v.removeElementAt(i);
+      }
+    }
+    seen = null;
+    return r;
+  }
+
+  /**
+   * Walks everything reachable from <var>L</var>, leaving it in
+   * {@link #seen}, and returns its estimated size, which it also
+   * records in {@link #measured}.
+   */
+  private long walk(Lua L)
+  {
+    seen = new HashMap();
+    work = new Vector();
+    strings = 0;
+    long size = 0;
+    add(L);
+    while (!work.isEmpty())
+    {
+      int n = work.size() - 1;
+      Object o = work.elementAt(n);
+      work.removeElementAt(n);
+      size += size(o);
+    }
+    size += strings;
+    work = null;
+    measured = size;
+    return size;
+  }
+
+  /** Notes that <var>o</var> is reachable. */
+  void add(Object o)
+  {
+    if (o == null || o == Lua.NIL || o instanceof Double ||
+        o instanceof Boolean || seen.containsKey(o))
+    {
+      return;
+    }
+    seen.put(o, o);
+    if (o instanceof String)
+    {
+      // Lua strings are interned, so equal strings count once.
+      strings += STRING + 2*((String)o).length();
+      return;
+    }
+    work.addElement(o);
+  }
+
+  /** Size of <var>o</var> itself, adding what it refers to. */
+  private long size(Object o)
+  {
+    if (o instanceof LuaTable)
+    {
+      return ((LuaTable)o).mark(this);
+    }
+    if (o instanceof LuaFunction)
+    {
+      LuaFunction f = (LuaFunction)o;
+      int n = f.proto().nups();
+      for (int i=0; i<n; ++i)
+      {
+        add(f.upVal(i).getValue());
+      }
+      add(f.getEnv());
+      return FUNCTION + UPVAL*n;
+    }
+    if (o instanceof LuaUserdata)
+    {
+      LuaUserdata u = (LuaUserdata)o;
+      add(u.getMetatable());
+      add(u.getEnv());
+      return USERDATA;
+    }
+    if (o instanceof Lua)
+    {
+      return ((Lua)o).mark(this);
+    }
+    return OBJECT;
+  }
+}
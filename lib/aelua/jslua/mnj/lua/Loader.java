@@ -43,6 +43,8 @@ import java.io.IOException;
  * </ul>
  * Any Lua chunk compiled by a stock Lua 5.1 running on a 32-bit Windows
  * PC or at 32-bit OS X machine should be fine.
+ * The chunk is decoded from a byte array, either one supplied by the
+ * caller or one read, in bulk, from an <code>InputStream</code>.
  */
 final class Loader
 {
@@ -53,27 +55,106 @@ final class Loader
    * little-endian format.
    */
   private boolean bigendian;
-  private InputStream in;
   private String name;
 
-  // auxiliary for reading ints/numbers
-  private byte [] intbuf = new byte [4] ;
-  private byte [] longbuf = new byte [8] ;
+  /**
+   * The binary chunk.  Everything is decoded straight out of this
+   * array; <code>pos</code> is the next byte to decode and
+   * <code>end</code> is one past the last byte of the chunk.
+   */
+  private byte[] b;
+  private int pos;
+  private int end;
+
+  /**
+   * Whether nested functions are decoded lazily; see {@link
+   * #undump(boolean, boolean)}.
+   */
+  private boolean lazy;
+
+  /**
+   * Whether local variable and upvalue names are dropped; see {@link
+   * #undump(boolean, boolean)}.
+   */
+  private boolean strip;
+
+  private static final String[] NO_STRING = new String[0];
+  private static final int[] NO_INT = new int[0];
 
   /**
    * A new chunk loader.  The <code>InputStream</code> must be
    * positioned at the beginning of the <code>LUA_SIGNATURE</code> that
-   * marks the beginning of a Lua binary chunk.
+   * marks the beginning of a Lua binary chunk.  The stream is read
+   * to its end, in bulk, before anything is decoded.
    * @param in    The binary stream from which the chunk is read.
    * @param name  The name of the chunk.
+   * @throws IOException when the underlying stream does.
    */
-  Loader(InputStream in, String name)
+  Loader(InputStream in, String name) throws IOException
   {
     if (null == in)
     {
       throw new NullPointerException();
     }
-    this.in = in;
+    byte[] buf = new byte[4096];
+    int n = 0;
+    while (true)
+    {
+      if (n == buf.length)
+      {
+        byte[] newbuf = new byte[n*2];
+        System.arraycopy(buf, 0, newbuf, 0, n);
+        buf = newbuf;
+      }
+      int r = in.read(buf, n, buf.length - n);
+      if (r < 0)
+      {
+        break;
+      }
+      n += r;
+    }
+    init(buf, 0, n, name);
+  }
+
+  /**
+   * A new chunk loader that decodes directly from an array, without
+   * copying it.  The array must not be modified while the loader is
+   * in use.
+   * @param b     The binary chunk.
+   * @param off   Offset of the <code>LUA_SIGNATURE</code> in
+   *              <var>b</var>.
+   * @param len   Length of the chunk.
+   * @param name  The name of the chunk.
+   */
+  Loader(byte[] b, int off, int len, String name)
+  {
+    if (off < 0 || len < 0 || off + len > b.length)
+    {
+      throw new IndexOutOfBoundsException();
+    }
+    init(b, off, len, name);
+  }
+
+  /**
+   * A new chunk loader for a string as produced by
+   * <code>string.dump</code>, one byte per char.
+   */
+  Loader(String s, String name)
+  {
+    int n = s.length();
+    byte[] buf = new byte[n];
+    for (int i=0; i<n; ++i)
+    {
+      buf[i] = (byte)s.charAt(i);
+    }
+    init(buf, 0, n, name);
+  }
+
+  private void init(byte[] b, int off, int len, String name)
+  {
+    this.b = b;
+    this.pos = off;
+    this.end = off + len;
     // The name is treated slightly.  See lundump.c in the PUC-Rio
     // source for details.
     if (name.startsWith("@") || name.startsWith("="))
@@ -97,26 +178,73 @@ final class Loader
    */
   Proto undump() throws IOException
   {
+    return undump(false, false);
+  }
+
+  /**
+   * Loads (undumps) a dumped binary chunk, optionally leaving nested
+   * functions undecoded.  In lazy mode the whole chunk is still
+   * checked, but each nested function is only skipped over and its
+   * offset recorded; it is decoded when {@link Proto#proto(int)} first
+   * asks for it, which is normally when an <code>OP_CLOSURE</code>
+   * first instantiates it.  The chunk's bytes are kept until then.
+   * Optionally the names of local variables and upvalues are dropped
+   * as the chunk is loaded; line info is always kept.
+   * @param lazy   true to decode nested functions on demand.
+   * @param strip  true to drop local variable and upvalue names.
+   * @throws IOException  if chunk is malformed or unacceptable.
+   */
+  Proto undump(boolean lazy, boolean strip) throws IOException
+  {
+    this.lazy = lazy;
+    this.strip = strip;
     this.header();
     return this.function(null);
   }
 
+  /**
+   * Decodes a nested function that was skipped by a lazy {@link
+   * #undump(boolean, boolean)}.  Any functions nested inside it are left
+   * undecoded in their turn.  Uses a fresh cursor so that the loader
+   * can be shared by every Proto in the chunk.
+   * @param off           offset of the function in the chunk.
+   * @param parentSource  Name of parent source "file".
+   */
+  Proto function(int off, String parentSource)
+  {
+    Loader l = new Loader(b, off, end - off, "");
+    l.name = name;
+    l.bigendian = bigendian;
+    l.lazy = true;
+    l.strip = strip;
+    try
+    {
+      return l.function(parentSource);
+    }
+    catch (IOException e)
+    {
+      // Cannot happen; the lazy undump checked the whole chunk.
+      throw new IllegalStateException();
+    }
+  }
+
 
   /**
    * Primitive reader for undumping.
-   * Reads exactly enough bytes from <code>this.in</code> to fill the
-   * array <code>b</code>.  If there aren't enough to fill
-   * <code>b</code> then an exception is thrown.  Similar to
-   * <code>LoadBlock</code> from PUC-Rio's <code>lundump.c</code>.
-   * @param b  byte array to fill.
-   * @throws EOFException when the stream is exhausted too early.
-   * @throws IOException when the underlying stream does.
+   * Checks that there are at least <var>n</var> more bytes in the
+   * chunk and returns the offset of the first of them, skipping past
+   * them.  Similar to <code>LoadBlock</code> from PUC-Rio's
+   * <code>lundump.c</code>.
+   * @param n  number of bytes wanted.
+   * @throws EOFException when the chunk is exhausted too early.
    */
-  private void block(byte []b) throws IOException
+  private int block(int n) throws IOException
   {
-    int n = in.read(b);
-    if (n != b.length)
+    if (n < 0 || n > end - pos)
       throw new EOFException();
+    int p = pos;
+    pos += n;
+    return p;
   }
 
   /**
@@ -125,11 +253,9 @@ final class Loader
    */
   private int byteLoad() throws IOException
   {
-    int c = in.read() ;
-    if (c == -1)
+    if (pos >= end)
       throw new EOFException();
-    else
-      return c & 0xFF ;  // paranoia
+    return b[pos++] & 0xFF ;
   }
 
   /**
@@ -139,16 +265,7 @@ final class Loader
   private int[] code() throws IOException
   {
     int n = intLoad();
-    int[] code = new int[n];
-
-    for (int i=0; i<n; ++i)
-    {
-      // :Instruction:size  Here we assume that a dumped Instruction is
-      // the same size as a dumped int.
-      code[i] = intLoad();
-    }
-
-    return code;
+    return ints(n);
   }
 
   /**
@@ -220,22 +337,34 @@ final class Loader
   {
     // lineinfo
     int n = intLoad();
-    int[] lineinfo = new int[n];
+    int[] lineinfo = ints(n);
 
-    for (int i=0; i<n; ++i)
+    if (strip)
     {
-      lineinfo[i] = intLoad();
+      n = intLoad();
+      for (int i=0; i<n; ++i)
+      {
+        skipString();
+        block(8);
+      }
+      n = intLoad();
+      for (int i=0; i<n; ++i)
+      {
+        skipString();
+      }
+      proto.debug(lineinfo, NO_STRING, NO_INT, NO_STRING);
+      return;
     }
 
     // locvars
     n = intLoad();
-    LocVar[] locvar = new LocVar[n];
+    String[] locname = new String[n];
+    int[] locpc = new int[2*n];
     for (int i=0; i<n; ++i)
     {
-      String s = string();
-      int start = intLoad();
-      int end = intLoad();
-      locvar[i] = new LocVar(s, start, end);
+      locname[i] = string();
+      locpc[2*i] = intLoad();
+      locpc[2*i+1] = intLoad();
     }
 
     // upvalue (names)
@@ -246,7 +375,7 @@ final class Loader
       upvalue[i] = string();
     }
 
-    proto.debug(lineinfo, locvar, upvalue);
+    proto.debug(lineinfo, locname, locpc, upvalue);
 
     return;
   }
@@ -312,31 +441,125 @@ final class Loader
     maxstacksize = this.byteLoad();
     code = this.code();
     constant = this.constant();
-    proto = this.proto(source);
+    int[] off = null;
+    if (lazy)
+    {
+      int n = intLoad();
+      off = new int[n];
+      for (int i=0; i<n; ++i)
+      {
+        off[i] = pos;
+        skip();
+      }
+      proto = new Proto[n];
+    }
+    else
+    {
+      proto = this.proto(source);
+    }
     Proto newProto = new Proto(constant, code, proto, nups,
       numparams, vararg, maxstacksize);
     newProto.setSource(source);
     newProto.setLinedefined(linedefined);
     newProto.setLastlinedefined(lastlinedefined);
+    if (off != null)
+    {
+      newProto.lazy(this, off);
+    }
 
     this.debug(newProto);
     // :todo: call code verifier
     return newProto;
   }
 
+  /**
+   * Skips over a dumped function, checking it in the same way as
+   * {@link #function(String)} but without creating anything.  Used by
+   * a lazy undump, so that a function decoded later cannot fail.
+   */
+  private void skip() throws IOException
+  {
+    skipString();               // source
+    block(8);                   // linedefined, lastlinedefined
+    byteLoad();                 // nups
+    byteLoad();                 // numparams
+    if (byteLoad() > 3)         // is_vararg, see function
+    {
+      throw new IOException();
+    }
+    byteLoad();                 // maxstacksize
+    skipInts(intLoad());        // code
+    int n = intLoad();          // constants, see constant
+    for (int i=0; i<n; ++i)
+    {
+      switch (byteLoad())
+      {
+        case 0:
+          break;
+        case 1:
+          if (byteLoad() > 1)
+            throw new IOException();
+          break;
+        case 3:
+          block(8);
+          break;
+        case 4:
+          skipString();
+          break;
+        default:
+          throw new IOException();
+      }
+    }
+    n = intLoad();              // nested functions
+    for (int i=0; i<n; ++i)
+    {
+      skip();
+    }
+    skipInts(intLoad());        // lineinfo
+    n = intLoad();              // locvars
+    for (int i=0; i<n; ++i)
+    {
+      skipString();
+      block(8);
+    }
+    n = intLoad();              // upvalue names
+    for (int i=0; i<n; ++i)
+    {
+      skipString();
+    }
+  }
+
+  /** Skips <var>n</var> dumped ints; see {@link #ints}. */
+  private void skipInts(int n) throws IOException
+  {
+    if (n < 0 || n > (end - pos) >> 2)
+      throw new EOFException();
+    pos += n << 2;
+  }
+
+  /** Skips a dumped string; see {@link #string}. */
+  private void skipString() throws IOException
+  {
+    int size = intLoad();
+    if (size != 0)
+    {
+      block(size);
+    }
+  }
+
   private static final int HEADERSIZE = 12;
 
   /** A chunk header that is correct.  Except for the endian byte, at
-   * index 6, which is always overwritten with the one from the file,
-   * before comparison.  We cope with either endianness.
+   * index 6, which is not compared by {@link #header} and is written
+   * as 0 (big-endian) by the dumper.  We cope with either endianness.
    * Default access so that {@link Lua#load} can read the first entry.
-   * On no account should anyone except {@link #header} modify
-   * this array.
+   * No one should modify this array; it is shared by every load and
+   * dump.
    */
   static final byte[] HEADER = new byte[]
   {
       033, (byte)'L', (byte)'u', (byte)'a',
-      0x51, 0, 99, 4,
+      0x51, 0, 0, 4,
       4, 4, 8, 0};
 
   /**
@@ -369,19 +592,22 @@ final class Loader
    */
   private void header() throws IOException
   {
-    byte[] buf = new byte[HEADERSIZE];
-    int n;
-
-    block(buf);
-
-    // poke the HEADER's endianness byte and compare.
-    HEADER[6] = buf[6];
+    int p = block(HEADERSIZE);
 
-    if (buf[6] < 0 || buf[6] > 1 || !arrayEquals(HEADER, buf))
+    // compare, ignoring the endianness byte.
+    byte endian = b[p+6];
+    for (int i=0; i<HEADERSIZE; ++i)
+    {
+      if (i != 6 && b[p+i] != HEADER[i])
+      {
+        throw new IOException();
+      }
+    }
+    if (endian < 0 || endian > 1)
     {
       throw new IOException();
     }
-    bigendian = (buf[6] == 0);
+    bigendian = (endian == 0);
   }
 
   /**
@@ -392,53 +618,50 @@ final class Loader
   private int intLoad() throws IOException
   {
     // :int:size  Here we assume an int is 4 bytes.
-    block(intbuf);
+    int p = block(4);
 
-    int i;
     // Caution: byte is signed so "&0xff" converts to unsigned value.
     if (bigendian)
     {
-      i = ((intbuf[0]&0xff) << 24) | ((intbuf[1]&0xff) << 16) |
-          ((intbuf[2]&0xff) << 8) | (intbuf[3]&0xff);
+      return ((b[p]&0xff) << 24) | ((b[p+1]&0xff) << 16) |
+          ((b[p+2]&0xff) << 8) | (b[p+3]&0xff);
     }
-    else
-    {
-      i = ((intbuf[3]&0xff) << 24) | ((intbuf[2]&0xff) << 16) |
-          ((intbuf[1]&0xff) << 8) | (intbuf[0]&0xff);
-    }
-    return i;
-
-    /* minimum footprint version?
-    int result = 0 ;
-    for (int shift = 0 ; shift < 32 ; shift+=8)
-    {
-      int byt = byteLoad () ;
-      if (bigendian)
-        result = (result << 8) | byt ;
-      else
-        result |= byt << shift ;
-    }
-    return result ;
-    */
+    return ((b[p+3]&0xff) << 24) | ((b[p+2]&0xff) << 16) |
+        ((b[p+1]&0xff) << 8) | (b[p]&0xff);
+  }
 
-    /* another version?
+  /**
+   * Undumps an array of <var>n</var> ints, such as the code or the
+   * lineinfo of a <code>Proto</code>.  The bounds are checked once for
+   * the whole array, not once per element.
+   */
+  private int[] ints(int n) throws IOException
+  {
+    // :int:size :Instruction:size  Here we assume that a dumped
+    // Instruction is the same size as a dumped int, 4 bytes.
+    if (n < 0 || n > (end - pos) >> 2)
+      throw new EOFException();
+    int[] a = new int[n];
+    byte[] b = this.b;
+    int p = pos;
     if (bigendian)
     {
-      int result = byteLoad() << 24 ;
-      result |= byteLoad () << 16 ;
-      result |= byteLoad () << 8 ;
-      result |= byteLoad () ;
-      return result;
+      for (int i=0; i<n; ++i, p+=4)
+      {
+        a[i] = ((b[p]&0xff) << 24) | ((b[p+1]&0xff) << 16) |
+            ((b[p+2]&0xff) << 8) | (b[p+3]&0xff);
+      }
     }
     else
     {
-      int result = byteLoad() ;
-      result |= byteLoad () << 8 ;
-      result |= byteLoad () << 16 ;
-      result |= byteLoad () << 24 ;
-      return result ;
+      for (int i=0; i<n; ++i, p+=4)
+      {
+        a[i] = ((b[p+3]&0xff) << 24) | ((b[p+2]&0xff) << 16) |
+            ((b[p+1]&0xff) << 8) | (b[p]&0xff);
+      }
     }
-    */
+    pos = p;
+    return a;
   }
 
   /**
@@ -447,20 +670,78 @@ final class Loader
   private Object number() throws IOException
   {
     // :lua_Number:size  Here we assume that the size is 8.
-    block(longbuf);
+    int p = block(8);
     // Big-endian architectures store doubles with the sign bit first;
     // little-endian is the other way around.
     long l = 0;
     for (int i=0; i<8; ++i)
     {
       if (bigendian)
-        l = (l << 8) | (longbuf[i]&0xff);
+        l = (l << 8) | (b[p+i]&0xff);
       else
-        l = (l >>> 8) | (((long)(longbuf[i]&0xff)) << 56);
+        l = (l >>> 8) | (((long)(b[p+i]&0xff)) << 56);
+    }
+    return Lua.valueOfNumber(longBitsToDouble(l));
+  }
+
+  /**
+   * Equivalent to {@link java.lang.Double#longBitsToDouble}, which the
+   * GWT JRE emulation does not provide.
+   */
+  static double longBitsToDouble(long l)
+  {
+    int e = (int)(l >>> 52) & 0x7ff;
+    long m = l & 0xfffffffffffffL;
+    double d;
+    if (e == 0x7ff)
+    {
+      d = m == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+    }
+    else if (e == 0)
+    {
+      // zero or subnormal
+      d = m * Double.MIN_VALUE;
+    }
+    else
+    {
+      d = (m | 0x10000000000000L) * Math.pow(2, e - 1075);
+    }
+    return l < 0 ? -d : d;
+  }
+
+  /**
+   * Equivalent to {@link java.lang.Double#doubleToLongBits}, which the
+   * GWT JRE emulation does not provide.  Used by the dumper.
+   */
+  static long doubleToLongBits(double d)
+  {
+    if (d != d)
+    {
+      return 0x7ff8000000000000L;
+    }
+    long sign = (d < 0 || (d == 0 && 1/d < 0)) ? 0x8000000000000000L : 0;
+    d = Math.abs(d);
+    if (d == Double.POSITIVE_INFINITY)
+    {
+      return sign | 0x7ff0000000000000L;
     }
-//    double d = Double.longBitsToDouble(l);
-//    return Lua.valueOfNumber(d);
-    return Lua.valueOfNumber(0);
+    if (d < 2.2250738585072014E-308)    // smallest normal
+    {
+      return sign | (long)(d / Double.MIN_VALUE);
+    }
+    int e = (int)Math.floor(Math.log(d) / Math.log(2));
+    // The logarithm may be out by one either side of a power of two.
+    double p = Math.pow(2, e);
+    if (p > d)
+    {
+      p = Math.pow(2, --e);
+    }
+    else if (p * 2 <= d)
+    {
+      p = Math.pow(2, ++e);
+    }
+    long m = (long)((d / p) * 4503599627370496.0);      // 2^52
+    return sign | ((long)(e + 1023) << 52) | (m & 0xfffffffffffffL);
   }
 
   /**
@@ -487,9 +768,7 @@ final class Loader
    * Undumps a {@link String} or <code>null</code>.  As per
    * <code>LoadString</code> in
    * PUC-Rio's lundump.c.  Strings are converted from the binary
-   * using the UTF-8 encoding, using the {@link
-   * java.lang.String#String(byte[], String) String(byte[], String)}
-   * constructor.
+   * using the UTF-8 encoding, see {@link #utf8}.
    */
   private String string() throws IOException
   {
@@ -500,35 +779,46 @@ final class Loader
       return null;
     }
 
-    byte[] buf = new byte[size-1];
-    block(buf);
-    // Discard trailing NUL byte
-    if (in.read() == -1)
-      throw new EOFException() ;
-
-//    return (new String(buf, "UTF-8")).intern();
-    return (new String()).intern();
+    // Decode in place, discarding the trailing NUL byte.
+    int p = block(size);
+    return utf8(b, p, size-1).intern();
   }
 
   /**
-   * CLDC 1.1 does not provide <code>java.util.Arrays</code> so we make
-   * do with this.
+   * Decodes UTF-8.  The GWT JRE emulation has no
+   * <code>String(byte[], String)</code> constructor so this is done by
+   * hand.  Malformed sequences decode byte for byte, the same way
+   * string.dump output does.
    */
-  private static boolean arrayEquals(byte[] x, byte[] y)
+  static String utf8(byte[] b, int off, int len)
   {
-    if (x.length != y.length)
+    char[] c = new char[len];
+    int n = 0;
+    int end = off + len;
+    while (off < end)
     {
-      return false;
-    }
-    for (int i=0; i < x.length; ++i)
-    {
-      if (x[i] != y[i])
+      int x = b[off++] & 0xff;
+      if (x >= 0xf0 && off+2 < end)
+      {
+        x = ((x & 0x07) << 18) | ((b[off] & 0x3f) << 12) |
+            ((b[off+1] & 0x3f) << 6) | (b[off+2] & 0x3f);
+        off += 3;
+        x -= 0x10000;
+        c[n++] = (char)(0xd800 + (x >> 10));
+        x = 0xdc00 + (x & 0x3ff);
+      }
+      else if (x >= 0xe0 && off+1 < end)
+      {
+        x = ((x & 0x0f) << 12) | ((b[off] & 0x3f) << 6) | (b[off+1] & 0x3f);
+        off += 2;
+      }
+      else if (x >= 0xc0 && off < end)
       {
-        return false;
+        x = ((x & 0x1f) << 6) | (b[off] & 0x3f);
+        ++off;
       }
+      c[n++] = (char)x;
     }
-    return true;
+    return new String(c, 0, n);
   }
 }
-
-
@@ -114,6 +114,12 @@ public final class Lua
   private int base;     // = 0;
 
   int nCcalls;  // = 0;
+  /**
+   * Number of {@link #pcall} and {@link #resume} calls active in this
+   * thread.  While it is non-zero an error is going to be caught, so
+   * {@link #dThrow} skips the Lua stack dump.
+   */
+  private int nPcalls;  // = 0;
   /** Instruction to resume execution at.  Index into code array. */
   private int savedpc;  // = 0;
   /**
@@ -137,6 +143,22 @@ public final class Lua
    */
   private Vector openupval = new Vector();
 
+  /**
+   * Userdata given a metatable with a <code>__gc</code> field, in that
+   * order.  Their finalisers are run by {@link #close}.  Shared between
+   * all threads.
+   */
+  private Vector tobefnz;
+
+  /**
+   * Estimate of the memory in use, see {@link #gc}.  Shared between
+   * all threads.
+   */
+  private Heap heap;
+
+  /** Instruction budget, see {@link #setInstructionBudget}. */
+  private Budget budget;
+
   int hookcount;
   int basehookcount;
   boolean allowhook = true;
@@ -167,6 +189,35 @@ public final class Lua
   /** Metatable for primitive types.  Shared between all threads. */
   private LuaTable[] metatable;
 
+  /** Cache of compiled chunks, used by {@link #loadString}.  Shared
+   * between all threads.  May be null.
+   */
+  private ChunkCache chunkCache;
+
+  /** Whether the compiler runs the {@link Optimiser}.  Shared between
+   * all threads.
+   */
+  private boolean optimise;
+
+  /** Whether binary chunks are undumped lazily, see {@link
+   * #setLazyLoad}.  Shared between all threads.
+   */
+  private boolean lazyLoad;
+
+  /** Whether local variable and upvalue names are dropped from
+   * chunks, see {@link #setStripDebug}.  Shared between all threads.
+   */
+  private boolean stripDebug;
+
+  /** Where output goes, see {@link #getOutput}.  Null until needed. */
+  private OutputSink output;
+
+  /**
+   * Whether errors record a Java stack trace and a dump of the Lua
+   * stack, see {@link #setErrorTrace}.
+   */
+  private boolean errorTrace;
+
   /**
    * Maximum number of local variables per function.  As per
    * LUAI_MAXVARS from "luaconf.h".  Default access so that {@link
@@ -174,6 +225,11 @@ public final class Lua
    */
   static final int MAXVARS = 200;
   static final int MAXSTACK = 250;
+  /**
+   * Maximum depth of nested calls.  As per LUAI_MAXCALLS from
+   * "luaconf.h".  Also bounds the size of the stack.
+   */
+  static final int MAXCALLS = 20000;
   static final int MAXUPVALUES = 60;
 
   /**
@@ -205,6 +261,15 @@ public final class Lua
     this.global = L.global;
     this.registry = L.registry;
     this.metatable = L.metatable;
+    this.chunkCache = L.chunkCache;
+    this.optimise = L.optimise;
+    this.lazyLoad = L.lazyLoad;
+    this.stripDebug = L.stripDebug;
+    this.output = L.getOutput();
+    this.errorTrace = L.errorTrace;
+    this.tobefnz = L.tobefnz;
+    this.heap = L.heap;
+    this.budget = L.budget;
     this.main = L;
   }
 
@@ -219,9 +284,61 @@ public final class Lua
     this.global = new LuaTable();
     this.registry = new LuaTable();
     this.metatable = new LuaTable[NUM_TAGS];
+    this.tobefnz = new Vector();
+    this.heap = new Heap();
+    this.budget = new Budget();
     this.main = this;
   }
 
+  /**
+   * Creates a new state that starts as a copy of this one: the same
+   * global variables, registry, loaded modules and library tables,
+   * but none of them shared.  Changes made in either state are not
+   * seen by the other.  The copy is made lazily, each table being
+   * copied when the new state first uses it, so forking a state
+   * prepared once (libraries opened, common modules loaded) is much
+   * cheaper than preparing a new one.
+   * <p>
+   * The tables of this state must not be changed while any state
+   * forked from it is still in use, as a fork copies each table as it
+   * is when the fork first uses it.  The usual pattern is to prepare a
+   * template state and only ever fork it.  Userdata are copied but
+   * wrap the same Java object, and are not finalised by the new state
+   * (see {@link #close}): the Java object belongs to this state, which
+   * finalises it.  Java functions are shared, unless they override
+   * {@link LuaJavaCallback#fork} to copy themselves, which they must
+   * if they refer to tables of this state.  Coroutines are not
+   * copied.  Settings such as {@link #setOptimise}, the {@link
+   * ChunkCache} and an output sink set with {@link #setOutput} are
+   * carried over; hooks are not.
+   * The new state has the same memory limit and instruction budget
+   * (see {@link #setMemoryLimit} and {@link #setInstructionBudget}),
+   * but its own: its memory is counted from scratch and its budget
+   * starts full.
+   * </p>
+   * @return the new state.
+   */
+  public Lua fork()
+  {
+    Lua L = new Lua();
+    Fork f = new Fork(main, L);
+    L.global = f.table(global);
+    L.registry = f.table(registry);
+    for (int i=0; i<NUM_TAGS; ++i)
+    {
+      L.metatable[i] = f.table(metatable[i]);
+    }
+    L.chunkCache = chunkCache;
+    L.optimise = optimise;
+    L.lazyLoad = lazyLoad;
+    L.stripDebug = stripDebug;
+    L.output = output;
+    L.errorTrace = errorTrace;
+    L.heap.limit = heap.limit;
+    L.setInstructionBudget(budget.size, budget.yield);
+    return L;
+  }
+
   /**
    * Equivalent of LUA_MULTRET.
    */
@@ -284,9 +401,10 @@ public final class Lua
    */
   public static final int ERRSYNTAX     = 3;
   /** Status code, returned from pcall and friends, that indicates
-   * a memory allocation error.
+   * a memory allocation error: the state has gone over its memory
+   * limit (see {@link #setMemoryLimit}).
    */
-  private static final int ERRMEM        = 4;
+  public static final int ERRMEM        = 4;
   /** Status code, returned from pcall and friends, that indicates
    * an error whilst running the error handler function.
    */
@@ -371,15 +489,119 @@ public final class Lua
   {
     apiChecknelems(nargs+1);
     int func = stackSize - (nargs + 1);
-    this.vmCall(func, nresults);
+    boolean host = civ.size() == 1;     // called by the host?
+    try
+    {
+      this.vmCall(func, nresults);
+    }
+    finally
+    {
+      if (host)
+      {
+        flushOutput();
+      }
+    }
   }
 
   /**
-   * Closes a Lua state.  In this implementation, this method does
-   * nothing.
+   * Closes a Lua state.  Calls the <code>__gc</code> metamethod of each
+   * userdata that was given a metatable with a <code>__gc</code> field
+   * (see {@link #setMetatable}) and has not been finalised yet, most
+   * recent first, as PUC-Rio's lua_close does.  Errors in finalisers are ignored.  Then flushes
+   * the state's output, see {@link #getOutput}.
+   * <p>
+   * Before then finalisers only run when the state measures what is
+   * reachable, by <code>collectgarbage</code> (see {@link #gc}) or
+   * when a pooled state is released (see {@link LuaPool#release}):
+   * without weak references (which GWT lacks) the state cannot
+   * otherwise tell when a userdata becomes garbage.  Such userdata
+   * are kept until then.
+   * </p>
    */
   public void close()
   {
+    finalise(tobefnz);
+    flushOutput();
+  }
+
+  /**
+   * Calls the <code>__gc</code> metamethods of those userdata awaiting
+   * finalisation (see {@link #close}) that can no longer be reached
+   * from the state, most recent first, and flushes the output.  Also
+   * updates the memory estimate, as <code>collectgarbage()</code>
+   * does.  Used by {@link LuaPool} when a state is released, so that
+   * what each user of the state leaves behind is finalised.  Does
+   * nothing, cheaply, when no userdata await finalisation.
+   */
+  void finalise()
+  {
+    if (tobefnz.isEmpty())
+    {
+      return;
+    }
+    finalise(heap.unreachable(this, tobefnz));
+    flushOutput();
+  }
+
+  /**
+   * Replaces the memory estimate with what is reachable from the
+   * state, and finalises the userdata awaiting finalisation that are
+   * not.  Used by {@link #gc}.
+   */
+  private void collect()
+  {
+    if (tobefnz.isEmpty())
+    {
+      heap.count = heap.measure(this);
+    }
+    else
+    {
+      finalise(heap.unreachable(this, tobefnz));
+    }
+  }
+
+  /**
+   * Calls the <code>__gc</code> metamethods of the userdata in
+   * <var>v</var>, most recent first, emptying it.  Errors are ignored.
+   */
+  private void finalise(Vector v)
+  {
+    int top = getTop();
+    while (!v.isEmpty())
+    {
+      int i = v.size() - 1;
+      LuaUserdata u = (LuaUserdata)v.elementAt(i);
+      v.removeElementAt(i);
+      Object gc = getMetafield(u, "__gc");
+      if (isFunction(gc))
+      {
+        push(gc);
+        push(u);
+        pcall(1, 0, null);
+        setTop(top);
+      }
+    }
+  }
+
+  /**
+   * Returns the state to how it was before any call was made: an
+   * empty stack, a single CallInfo record and no open upvalues.  Used
+   * by {@link LuaPool}.  Must not be called from inside the state.
+   */
+  void reset()
+  {
+    flushOutput();
+    fClose(0);
+    stacksetsize(0);
+    civ.setSize(0);
+    civ.addElement(new CallInfo());
+    base = 0;
+    nCcalls = 0;
+    savedpc = 0;
+    errfunc = null;
+    status = 0;
+    nPcalls = 0;
+    budget.resumes = 0;
   }
 
   /**
@@ -411,6 +633,7 @@ public final class Lua
    */
   public LuaTable createTable(int narr, int nrec)
   {
+    allocated(Heap.TABLE + (long)Heap.ELEMENT*narr + (long)Heap.ENTRY*nrec);
     return new LuaTable(narr, nrec);
   }
 
@@ -458,31 +681,44 @@ public final class Lua
   }
 
   /**
-   * Control garbage collector.  Note that in Jill most of the options
-   * to this function make no sense and they will not do anything.
+   * Control garbage collector.  Jill cannot control the Java garbage
+   * collector, so the options that would do so make no sense and do
+   * nothing.  The count, shared by all threads of the state, is an
+   * estimate kept by adding up what the state allocates (see {@link
+   * Heap}); {@link #GCCOLLECT} replaces it with an estimate of what is
+   * still reachable from the state.  Measuring takes time in
+   * proportion to what is reachable, so {@link #GCSTEP} only does so
+   * once the count has doubled since it was last measured (as with
+   * PUC-Rio's default pause), returning 1 if it did.  Both run the
+   * finalisers of the userdata they find unreachable (see {@link
+   * #close}).  Neither calls
+   * <code>System.gc</code>: collecting the whole JVM's heap on behalf
+   * of one script is far too costly in a server.
    * @param what  specifies what GC action to take.
    * @param data  data that may be used by the action.
    * @return varies.
    */
   public int gc(int what, int data)
   {
-//    Runtime rt;
-
     switch (what)
     {
       case GCSTOP:
-        return 0;
       case GCRESTART:
+        return 0;
       case GCCOLLECT:
-      case GCSTEP:
-        System.gc();
+        collect();
         return 0;
+      case GCSTEP:
+        if (heap.count - heap.measured < heap.measured)
+        {
+          return 0;
+        }
+        collect();
+        return 1;       // a cycle has finished
       case GCCOUNT:
-//        rt = Runtime.getRuntime();
-        return 0;//(int)((rt.totalMemory() - rt.freeMemory()) / 1024);
+        return (int)(heap.count >> 10);
       case GCCOUNTB:
-//        rt = Runtime.getRuntime();
-        return 0;//(int)((rt.totalMemory() - rt.freeMemory()) % 1024);
+        return (int)(heap.count & 1023);
       case GCSETPAUSE:
       case GCSETSTEPMUL:
         return 0;
@@ -490,6 +726,58 @@ public final class Lua
     return 0;
   }
 
+  /**
+   * Adds <var>bytes</var> to the estimate of the memory in use, and
+   * raises a memory error if that takes the state over its limit.
+   * Called where the state allocates something, before allocating
+   * it if possible; see {@link Heap}.
+   */
+  void allocated(long bytes)
+  {
+    heap.count += bytes;
+    if (heap.limit > 0 && heap.count > heap.limit)
+    {
+      heap.count = heap.measure(this) + bytes;
+      // Measuring takes time in proportion to what is reachable, so
+      // give up when it would have to be repeated too often.
+      if (heap.count + (heap.count >> 3) > heap.limit)
+      {
+        heap.count -= bytes;
+        dThrow(ERRMEM);
+      }
+    }
+  }
+
+  /**
+   * Adds what this thread refers to (globals, registry, type
+   * metatables and stack) to <var>h</var> and returns the thread's
+   * own size.  Used by {@link Heap#measure}.
+   */
+  int mark(Heap h)
+  {
+    h.add(main);
+    h.add(global);
+    h.add(registry);
+    for (int i=0; i<NUM_TAGS; ++i)
+    {
+      h.add(metatable[i]);
+    }
+    for (int i=0; i<stackSize; ++i)
+    {
+      h.add(stack[i].r);
+    }
+    return Heap.THREAD + Heap.STACKSLOT*stack.length;
+  }
+
+  /**
+   * Returns the cache of compiled chunks used by {@link #loadString}.
+   * @return the cache, or null if there is none.
+   */
+  public ChunkCache getChunkCache()
+  {
+    return chunkCache;
+  }
+
   /**
    * Returns the environment table of the Lua value.
    * @param o  the Lua value.
@@ -876,6 +1164,45 @@ public final class Lua
     return false;
   }
 
+  /**
+   * Gets the sink that receives this state's output, that of
+   * <code>print</code> in particular.  Unless one has been set with
+   * {@link #setOutput} this is a {@link BufferedSink} writing to
+   * <code>System.out</code>, made when first needed.  Output is
+   * batched; it is flushed when the host's outermost {@link #call},
+   * {@link #pcall} or {@link #resume} returns, even by an error, and
+   * by {@link #close}.
+   * @return the output sink.
+   */
+  public OutputSink getOutput()
+  {
+    if (output == null)
+    {
+      output = new BufferedSink(BaseLib.OUT);
+    }
+    return output;
+  }
+
+  /**
+   * Sets the sink that receives this state's output, see {@link
+   * #getOutput}.  Threads created afterwards share it.
+   * @param output  the new sink.
+   */
+  public void setOutput(OutputSink output)
+  {
+    flushOutput();
+    this.output = output;
+  }
+
+  /** Flushes the output sink, if there is one. */
+  private void flushOutput()
+  {
+    if (output != null)
+    {
+      output.flush();
+    }
+  }
+
   /**
    * Creates a new empty table and returns it.
    * @return a fresh table.
@@ -883,6 +1210,7 @@ public final class Lua
    */
   public LuaTable newTable()
   {
+    allocated(Heap.TABLE);
     return new LuaTable();
   }
 
@@ -892,6 +1220,7 @@ public final class Lua
    */
   public Lua newThread()
   {
+    allocated(Heap.THREAD);
     return new Lua(this);
   }
 
@@ -902,6 +1231,7 @@ public final class Lua
    */
   public LuaUserdata newUserdata(Object ref)
   {
+    allocated(Heap.USERDATA);
     return new LuaUserdata(ref);
   }
 
@@ -964,6 +1294,7 @@ public final class Lua
     errfunc = ef;
     boolean old_allowhook = allowhook;
     int errorStatus = 0;
+    ++nPcalls;
     try
     {
       call(nargs, nresults);
@@ -980,6 +1311,13 @@ public final class Lua
       allowhook = old_allowhook;
       errorStatus = e.errorStatus;
     }
+    finally
+    {
+      --nPcalls;
+    }
+    // Going over the memory limit (see setMemoryLimit) raises a
+    // LuaError with ERRMEM, caught above.  The JVM's own
+    // OutOfMemoryError is not caught: GWT does not emulate it.
 /* gwt does not throw this?
      catch (OutOfMemoryError e)
     {
@@ -1060,11 +1398,14 @@ public final class Lua
   }
 
   /**
-   * Push string onto the stack.
+   * Push string onto the stack.  The string counts as allocated by
+   * the state (see {@link #gc}), so libraries use this for the
+   * strings they build.
    * @param s  the string to push.
    */
   public void pushString(String s)
   {
+    allocated(Heap.STRING + 2*s.length());
     push(s);
   }
 
@@ -1136,7 +1477,7 @@ public final class Lua
   {
     apiCheck(t instanceof LuaTable);
     LuaTable h = (LuaTable)t;
-    h.putnum(i, v);
+    h.putnum(this, i, v);
   }
 
   /**
@@ -1168,43 +1509,83 @@ public final class Lua
         return resume_error("cannot resume non-suspended coroutine");
     }
     // assert errfunc == 0 && nCcalls == 0;
-    int errorStatus = 0;
-protect:
+    ++nPcalls;
+    ++budget.resumes;
+    int firstArg = stackSize - narg;
+    boolean start = true;
     try
     {
-      // This block is equivalent to resume from ldo.c
-      int firstArg = stackSize - narg;
-      if (status == 0)  // start coroutine?
+      while (true)
       {
-        // assert civ.size() == 1 && firstArg > base);
-        if (vmPrecall(firstArg - 1, MULTRET) != PCRLUA)
-          break protect;
-      }
-      else      // resuming from previous yield
-      {
-        // assert status == YIELD;
-        status = 0;
-        if (!isLua(ci()))       // 'common' yield
+        try
+        {
+          if (start)
+          {
+            start = false;
+            // This block is equivalent to resume from ldo.c
+            if (status == 0)  // start coroutine?
+            {
+              // assert civ.size() == 1 && firstArg > base);
+              int r = vmPrecall(firstArg - 1, MULTRET);
+              if (r != PCRLUA && r != PCRCONT)
+                break;
+            }
+            else      // resuming from previous yield
+            {
+              // assert status == YIELD;
+              status = 0;
+              if (!isLua(ci()))       // 'common' yield
+              {
+                // finish interrupted execution of 'OP_CALL', and of
+                // any pcall that was waiting for it
+                vmFinish(vmPoscall(firstArg));
+              }
+              else    // yielded inside a hook: just continue its execution
+                base = ci().base();
+            }
+          }
+          if (civ.size() > 1)
+          {
+            vmExecute(luaFrames());
+          }
+          break;
+        }
+        catch (LuaError e)
         {
-          // finish interrupted execution of 'OP_CALL'
-          // assert ...
-          if (vmPoscall(firstArg))      // complete it...
-            stacksetsize(ci().top());  // and correct top
+          // Equivalent to recover from Lua 5.2's ldo.c.
+          if (!vmRecover(e.errorStatus))
+          {
+            status = e.errorStatus;   // mark thread as 'dead'
+            dSeterrorobj(e.errorStatus, stackSize);
+            ci().setTop(stackSize);
+            break;
+          }
         }
-        else    // yielded inside a hook: just continue its execution
-          base = ci().base();
       }
-      vmExecute(civ.size() - 1);
     }
-    catch (LuaError e)
+    finally
     {
-      status = e.errorStatus;   // mark thread as 'dead'
-      dSeterrorobj(e.errorStatus, stackSize);
-      ci().setTop(stackSize);
+      --nPcalls;
+      --budget.resumes;
+    }
+    stackshrink();
+    if (budget.resumes == 0 && main.civ.size() == 1)  // back to the host?
+    {
+      flushOutput();
     }
     return status;
   }
 
+  /**
+   * Sets the cache of compiled chunks used by {@link #loadString}.
+   * Threads created after this call share the cache.
+   * @param cache  the cache, or null to always compile.
+   */
+  public void setChunkCache(ChunkCache cache)
+  {
+    chunkCache = cache;
+  }
+
   /**
    * Set the environment for a function, thread, or userdata.
    * @param o      Object whose environment will be set.
@@ -1282,6 +1663,11 @@ protect:
     else if (o instanceof LuaUserdata)
     {
       LuaUserdata u = (LuaUserdata)o;
+      if (mtt != null && !u.fnz && mtt.getlua("__gc") != NIL)
+      {
+        u.fnz = true;
+        tobefnz.addElement(u);  // see close
+      }
       u.setMetatable(mtt);
     }
     else
@@ -1290,6 +1676,91 @@ protect:
     }
   }
 
+  /**
+   * Enables or disables the optional bytecode optimiser for chunks
+   * compiled from source by this state (and threads created after
+   * this call).  Off by default, so that compiled code is the same as
+   * PUC-Rio's.
+   * @param on  true to optimise.
+   */
+  public void setOptimise(boolean on)
+  {
+    optimise = on;
+  }
+
+  /**
+   * Enables or disables lazy loading of binary chunks by this state
+   * (and threads created after this call).  When on, the functions
+   * nested in a binary chunk, including one held by the {@link
+   * ChunkCache}, are decoded when first instantiated rather than when
+   * the chunk is loaded.  The chunk's bytes are retained until then.
+   * Off by default.
+   * @param on  true to load lazily.
+   */
+  public void setLazyLoad(boolean on)
+  {
+    lazyLoad = on;
+  }
+
+  /**
+   * Makes this state (and threads created after this call) drop the
+   * names of local variables and upvalues from the chunks that it
+   * compiles or loads.  Line numbers are kept, so error messages and
+   * tracebacks are unaffected.  Saves memory when many functions are
+   * held resident.  Off by default.
+   * @param on  true to drop the names.
+   */
+  public void setStripDebug(boolean on)
+  {
+    stripDebug = on;
+  }
+
+  /**
+   * Sets whether errors are made for debugging.  Normally a Lua error
+   * is a cheap Java exception without a stack trace, and the dump of
+   * the Lua stack that forms its message is only made when the error
+   * is not going to be caught by <code>pcall</code>.  When set, every
+   * error records its Java stack trace and the dump.  Applies to
+   * threads created after this call.  Off by default.
+   * @param trace  true to record traces.
+   */
+  public void setErrorTrace(boolean trace)
+  {
+    errorTrace = trace;
+  }
+
+  /**
+   * Sets the memory limit, shared by all threads of the state.  When
+   * the state's estimate of its memory in use (see {@link #gc}) goes
+   * over the limit it first measures what is still reachable, as
+   * <code>collectgarbage("collect")</code> does.  If that is still
+   * over the limit, or so close to it that measuring would have to be
+   * repeated too often (what is reachable plus an eighth), it raises
+   * an error with status {@link #ERRMEM} and the message "not enough
+   * memory".  The error can be caught by
+   * <code>pcall</code> like any other; uncaught it reaches the host as
+   * a {@link LuaError}.  Growth of the stack raises it too, except
+   * while an error is being handled.
+   * @param bytes  the limit in bytes, or 0 (the default) for none.
+   */
+  public void setMemoryLimit(long bytes)
+  {
+    if (bytes < 0)
+    {
+      throw new IllegalArgumentException();
+    }
+    heap.limit = bytes;
+  }
+
+  /**
+   * Returns the memory limit set by {@link #setMemoryLimit}.
+   * @return the limit in bytes, or 0 for none.
+   */
+  public long getMemoryLimit()
+  {
+    return heap.limit;
+  }
+
   /**
    * Set a global variable.
    * @param name   name of the global variable to set.
@@ -1589,6 +2060,14 @@ protect:
    * thread to be suspended, as if <code>L.yield(0);</code> had been
    * executed, and the exception is re-thrown to the code that invoked
    * {@link #resume}.
+   * <p>
+   * A thread can yield from Lua functions, from Java functions they
+   * call directly, from the iterators of <code>for</code> loops, and
+   * from inside <code>pcall</code> and <code>xpcall</code>.  It cannot
+   * yield from inside a metamethod, or from a function called by Java
+   * code through {@link #call} or {@link #pcall} (such as a
+   * <code>table.sort</code> comparator).
+   * </p>
    * @param nresults  Number of results to return to {@link #resume}.
    * @return  a secret value.
    */
@@ -1601,6 +2080,60 @@ protect:
     return -1;
   }
 
+  /**
+   * Makes a protected call for {@link BaseLib}'s <code>pcall</code>
+   * and <code>xpcall</code>, from the Java function, with the function
+   * to call and its <var>nargs</var> arguments at the top of the
+   * stack.  Leaves <code>true</code> or <code>false</code> followed by
+   * the results or the error on the stack, as the Java function
+   * returns them.
+   * <p>
+   * When the thread could yield here (it is running under {@link
+   * #resume}, not in a metamethod or Java call) this does not call
+   * the function itself.  It marks the pcall's CallInfo and leaves
+   * the function's call to the VM, so that the function can yield.
+   * {@link #vmFinishPcall} completes the pcall when the function
+   * returns, and {@link #vmRecover} when it raises an error that
+   * reaches <code>resume</code>.  This is what Lua 5.2 does with
+   * <code>lua_pcallk</code>.  Otherwise this is {@link #pcall}.
+   * </p>
+   * @param nargs  number of arguments.
+   * @param ef     error function, or null.
+   * @return what the Java function should return.
+   */
+  int ypcall(int nargs, Object ef)
+  {
+    if (nCcalls > 0)
+    {
+      int status = pcall(nargs, MULTRET, ef);
+      insert(valueOfBoolean(status == 0), 1);
+      return getTop();
+    }
+    CallInfo ci = ci();
+    ci.setPcall(errfunc, allowhook);
+    errfunc = ef;
+    switch (vmPrecall(stackSize - (nargs+1), MULTRET))
+    {
+      case PCRLUA:
+      case PCRCONT:
+        return CONTINUE;        // the VM runs the function
+      case PCRJ:
+        break;
+      default:
+        return -1;      // yield, finished by vmFinishPcall
+    }
+    // The function was a Java function, and has returned.
+    errfunc = ci.errfunc();
+    insert(valueOfBoolean(true), 1);
+    return getTop();
+  }
+
+  /**
+   * Returned by a Java function that has left a Lua function for the
+   * VM to call, see {@link #ypcall}.
+   */
+  private static final int CONTINUE = -2;
+
   // Miscellaneous private functions.
 
   /** Convert from Java API stack index to absolute index.
@@ -1949,14 +2482,56 @@ protect:
 
   /**
    * Loads a Lua chunk from a string.  Pushes compiled chunk, or error
-   * message, onto stack.
+   * message, onto stack.  If the state has a {@link ChunkCache} then
+   * source chunks are looked up in it first.
    * @param s           the string to load.
    * @param chunkname   the name of the chunk.
    * @return status code, as per {@link #load}.
    */
   public int loadString(String s, String chunkname)
   {
-    return load(stringReader(s), chunkname);
+    push(new LuaInternal(s, chunkname));
+    return pcall(0, 1, null);
+  }
+
+  /**
+   * Loads a batch of Lua chunks from strings.  Every chunk is compiled
+   * before any is pushed.  Compilation does not use the state (see
+   * {@link Syntax#parser}), so on a host with threads the compilation
+   * loop is the part that can be spread over a pool; GWT has no
+   * threads so here it runs sequentially.  If every chunk compiles
+   * then the compiled chunks are pushed, in order, and 0 is returned.
+   * Otherwise only the error message for the first chunk that failed
+   * is pushed and its status code is returned.
+   * @param s           the strings to load.
+   * @param chunkname   the name of each chunk.
+   * @return status code, as per {@link #load}.
+   */
+  public int loadStrings(String[] s, String[] chunkname)
+  {
+    Proto[] p = new Proto[s.length];
+    for (int i=0; i<s.length; ++i)
+    {
+      try
+      {
+        p[i] = compile(s[i], chunkname[i]);
+      }
+      catch (SyntaxError e)
+      {
+        push(e.getMessage());
+        return e.errorStatus;
+      }
+      catch (IOException e)
+      {
+        push("cannot read " + chunkname[i] + ": " + e.toString());
+        return ERRFILE;
+      }
+    }
+    for (int i=0; i<p.length; ++i)
+    {
+      push(new LuaFunction(p[i], new UpVal[0], getGlobals()));
+    }
+    return 0;
   }
 
   /**
@@ -2154,6 +2729,57 @@ protect:
     return null;
   }
 
+  /**
+   * Sets the instruction budget, shared by all threads of the state.
+   * It is a cheaper way of bounding how long a script runs than a
+   * count hook (see {@link #setHook}), as it is only checked at loop
+   * back-edges and at calls.  It is counted approximately: each time
+   * round a loop counts the length of the loop in instructions, and
+   * each call counts one.
+   * <p>
+   * When the budget runs out the state either raises an error,
+   * "instruction budget exceeded", or, if <var>yield</var> is set,
+   * yields back to the code that called {@link #resume}, with no
+   * results, and gets a fresh budget.  A state can only yield this
+   * way from a thread the host resumed, outside any metamethod or
+   * Java function other than <code>pcall</code> and
+   * <code>xpcall</code> (see {@link #yield}); elsewhere it carries
+   * on, and yields at the first chance it gets.  If it uses up
+   * another budget before then the error is raised.  Without
+   * <var>yield</var> the budget stays used up after the error, so that
+   * a script cannot carry on by catching it, until this method is
+   * called again.
+   * </p>
+   * @param n      the budget, at most <code>Integer.MAX_VALUE/2</code>,
+   *               or 0 (the default) for none.
+   * @param yield  whether to yield rather than raise an error.
+   */
+  public void setInstructionBudget(int n, boolean yield)
+  {
+    if (n < 0 || n > Integer.MAX_VALUE/2)
+    {
+      throw new IllegalArgumentException();
+    }
+    budget.size = n;
+    budget.left = n == 0 ? Integer.MAX_VALUE : n;
+    budget.yield = yield;
+  }
+
+  /**
+   * Returns what is left of the budget set by {@link
+   * #setInstructionBudget}.
+   * @return what is left, 0 if it has run out, or
+   * <code>Integer.MAX_VALUE</code> if there is no budget.
+   */
+  public int getInstructionBudget()
+  {
+    if (budget.size == 0)
+    {
+      return Integer.MAX_VALUE;
+    }
+    return Math.max(budget.left, 0);
+  }
+
   /**
    * Sets the debug hook.
    */
@@ -2302,6 +2928,7 @@ protect:
    */
   private void dSeterrorobj(int errcode, int oldtop)
   {
+    stackgrow(oldtop+1, false);
     Object msg = objectAt(stackSize-1);
     if (stackSize == oldtop)
     {
@@ -2348,12 +2975,18 @@ protect:
 	
 	return s;
   }
+  /**
+   * Raises the error whose value is on top of the stack.  The dump of
+   * the Lua stack, which is costly, is only made when the error is
+   * going to reach the host, or when {@link #setErrorTrace} is set.
+   */
   void dThrow(int status)
   {
-
-	
-    throw new LuaError(status,dStackDumpString());
-//    throw new RuntimeException( s );
+    if (nPcalls > 0 && !errorTrace)
+    {
+      throw new LuaError(status);
+    }
+    throw new LuaError(status, dStackDumpString(), errorTrace);
   }
 
 
@@ -2443,20 +3076,63 @@ protect:
     gTypeerror(stack[p1], "concatenate");
   }
 
-  boolean gCheckcode(Proto p)
+  /** Getter for {@link #setOptimise} setting. */
+  boolean optimise()
   {
-    // :todo: implement me.
-    return true ;
+    return optimise;
   }
 
-  private int gErrormsg(Object message)
+  /** Getter for {@link #setLazyLoad} setting. */
+  boolean lazyLoad()
   {
-    push(message);
-    if (errfunc != null)        // is there an error handling function
-    {
-      if (!isFunction(errfunc))
-      {
-        dThrow(ERRERR);
+    return lazyLoad;
+  }
+
+  /** Getter for {@link #setStripDebug} setting. */
+  boolean stripDebug()
+  {
+    return stripDebug;
+  }
+
+  /**
+   * Compiles a chunk held in a string, or undumps it if it is a binary
+   * chunk.  Source chunks go through the {@link ChunkCache}, if there
+   * is one.  Does not use the stack.
+   * @throws SyntaxError if the chunk is not valid Lua.
+   * @throws IOException if a binary chunk is malformed.
+   */
+  Proto compile(String s, String chunkname) throws IOException
+  {
+    if (s.length() > 0 && s.charAt(0) == Loader.HEADER[0])
+    {
+      return new Loader(s, chunkname).undump(lazyLoad, stripDebug);
+    }
+    if (chunkCache != null)
+    {
+      return chunkCache.compile(s, chunkname, this);
+    }
+    Proto p = Syntax.parser(new StringReader(s), chunkname, optimise);
+    if (stripDebug)
+    {
+      p.strip();
+    }
+    return p;
+  }
+
+  static boolean gCheckcode(Proto p)
+  {
+    // :todo: implement me.
+    return true ;
+  }
+
+  private int gErrormsg(Object message)
+  {
+    push(message);
+    if (errfunc != null)        // is there an error handling function
+    {
+      if (!isFunction(errfunc))
+      {
+        dThrow(ERRERR);
       }
       insert(errfunc, getTop());        // push function (under error arg)
       vmCall(stackSize-2, 1);        // call it
@@ -2589,46 +3265,206 @@ protect:
     return a.equals(b);
   }
 
-  /** Equivalent to luaO_str2d. */
-  private static boolean oStr2d(String s, double[] out)
+  /**
+   * Equivalent to luaO_str2d.  Accepts what PUC-Rio's use of
+   * <code>strtod</code> and <code>strtoul</code> does: optional
+   * surrounding space and sign, then a decimal number with optional
+   * fraction and exponent, a hexadecimal integer ("0x1F"), or "inf",
+   * "infinity" or "nan" in any case.  Strings that are not numbers are
+   * rejected without allocating or throwing.
+   * @param s    the string to convert.
+   * @param out  receives the number in <code>out[0]</code>.
+   * @return true if <var>s</var> is a number.
+   */
+  static boolean oStr2d(String s, double[] out)
   {
-    // :todo: using try/catch may be too slow.  In which case we'll have
-    // to recognise the valid formats first.
-    try
+    int n = s.length();
+    int i = 0;
+    while (i < n && Syntax.isspace(s.charAt(i)))
     {
-      out[0] = Double.parseDouble(s);
-      return true;
+      ++i;
     }
-    catch (NumberFormatException e0_)
+    int start = i;
+    boolean neg = false;
+    if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+'))
     {
-      try
+      neg = s.charAt(i) == '-';
+      ++i;
+    }
+    double r;
+    if (i+1 < n && s.charAt(i) == '0' && (s.charAt(i+1) | 0x20) == 'x')
+    {
+      // Hexadecimal integer.
+      i += 2;
+      int d0 = i;
+      r = 0;
+      for (; i < n; ++i)
       {
-        // Attempt hexadecimal conversion.
-        // :todo: using String.trim is not strictly accurate, because it
-        // trims other ASCII control characters as well as whitespace.
-        s = s.trim().toUpperCase();
-        if (s.startsWith("0X"))
+        int c = s.charAt(i);
+        int l = c | 0x20;        // lower case, for letters
+        int h = c >= '0' && c <= '9' ? c - '0' :
+            l >= 'a' && l <= 'z' ? l - 'a' + 10 : 99;
+        if (h >= 16)
         {
-          s = s.substring(2);
+          break;
         }
-        else if (s.startsWith("-0X"))
+        r = r*16 + h;
+      }
+      if (i == d0 || !blank(s, i))
+      {
+        return false;
+      }
+    }
+    else
+    {
+      // Decimal.  m collects up to 18 significant digits and e is the
+      // power of ten that goes with them.  When the number cannot be
+      // computed exactly from m and e, Double.parseDouble is used on
+      // the (now known to be valid) text.
+      long m = 0;
+      int e = 0;
+      boolean digits = false;
+      boolean exact = true;
+      boolean point = false;
+      for (; i < n; ++i)
+      {
+        char c = s.charAt(i);
+        if (c >= '0' && c <= '9')
         {
-          s = "-" + s.substring(3);
+          digits = true;
+          if (m < 100000000000000000L)
+          {
+            m = m*10 + (c - '0');
+            if (point)
+            {
+              --e;
+            }
+          }
+          else
+          {
+            exact = false;
+            if (!point)
+            {
+              ++e;
+            }
+          }
+        }
+        else if (c == '.' && !point)
+        {
+          point = true;
+        }
+        else
+        {
+          break;
+        }
+      }
+      if (!digits)
+      {
+        int w;
+        if ((w = word(s, i, "infinity")) > 0 || (w = word(s, i, "inf")) > 0)
+        {
+          r = Double.POSITIVE_INFINITY;
+        }
+        else if ((w = word(s, i, "nan")) > 0)
+        {
+          r = Double.NaN;
         }
         else
         {
           return false;
         }
-        out[0] = Integer.parseInt(s, 16);
-        return true;
+        if (!blank(s, w))
+        {
+          return false;
+        }
       }
-      catch (NumberFormatException e1_)
+      else
       {
-        return false;
+        if (i < n && (s.charAt(i) | 0x20) == 'e')
+        {
+          int j = i + 1;
+          boolean eneg = false;
+          if (j < n && (s.charAt(j) == '-' || s.charAt(j) == '+'))
+          {
+            eneg = s.charAt(j) == '-';
+            ++j;
+          }
+          int x = 0;
+          int d0 = j;
+          for (; j < n && s.charAt(j) >= '0' && s.charAt(j) <= '9'; ++j)
+          {
+            if (x < 100000)
+            {
+              x = x*10 + (s.charAt(j) - '0');
+            }
+          }
+          if (j > d0)   // otherwise the 'e' is trailing garbage
+          {
+            e += eneg ? -x : x;
+            i = j;
+          }
+        }
+        if (!blank(s, i))
+        {
+          return false;
+        }
+        if (exact && m < (1L << 53) && e >= -22 && e <= 22)
+        {
+          // Both m and 10**|e| are exact doubles, so one operation
+          // gives the correctly rounded result.
+          r = e < 0 ? m / POW10[-e] : m * POW10[e];
+        }
+        else
+        {
+          r = Math.abs(Double.parseDouble(s.substring(start, i)));
+        }
       }
     }
+    out[0] = neg ? -r : r;
+    return true;
   }
 
+  /** Whether <var>s</var> has only space from <var>i</var> on. */
+  private static boolean blank(String s, int i)
+  {
+    int n = s.length();
+    while (i < n && Syntax.isspace(s.charAt(i)))
+    {
+      ++i;
+    }
+    return i == n;
+  }
+
+  /**
+   * Matches <var>w</var>, ignoring case, in <var>s</var> at
+   * <var>i</var>.
+   * @param w  lower case ASCII letters.
+   * @return the index after the match, or -1 when there is none.
+   */
+  private static int word(String s, int i, String w)
+  {
+    int l = w.length();
+    if (i + l > s.length())
+    {
+      return -1;
+    }
+    for (int k=0; k<l; ++k)
+    {
+      if ((s.charAt(i+k) | 0x20) != w.charAt(k))
+      {
+        return -1;
+      }
+    }
+    return i + l;
+  }
+
+  /** Powers of ten that are exact doubles. */
+  private static final double[] POW10 =
+  {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
 
   ////////////////////////////////////////////////////////////////////////
   // VM
@@ -2640,6 +3476,8 @@ protect:
   private static final int PCRLUA =     0;
   private static final int PCRJ =       1;
   private static final int PCRYIELD =   2;
+  /** A Java function was called, and left a Lua function to run. */
+  private static final int PCRCONT =    3;
 
   // Instruction decomposition.
 
@@ -2925,6 +3763,7 @@ protect:
             gRunerror("string length overflow");
           }
         }
+        allocated(Heap.STRING + 2L*tl);
         StringBuffer buffer = new StringBuffer(tl);
         for (int i=n; i>0; i--)         // concat all strings
         {
@@ -3003,6 +3842,7 @@ protect:
     // goto.  The end of the while loop is never reached.  The beginning
     // of the while loop is branched to using a "continue reentry;"
     // statement (when a Lua function is called or returns).
+    boolean returned = false;   // whether a function has returned
 reentry:
     while (true)
     {
@@ -3012,6 +3852,15 @@ reentry:
       int[] code = proto.code();
       Slot[] k = proto.constant();
       int pc = savedpc;
+      if (returned)
+      {
+        // An iterator called by OP_TFORLOOP has returned.
+        returned = false;
+        if (OPCODE(code[pc-1]) == OP_TFORLOOP)
+        {
+          pc = vmFinishTforloop(code, pc);
+        }
+      }
 
       while (true)        // main loop of interpreter
       {
@@ -3109,7 +3958,10 @@ reentry:
           {
             int b = ARGB(i);
             int c = ARGC(i);
-            stack[base+a].r = new LuaTable(oFb2int(b), oFb2int(c));
+            b = oFb2int(b);
+            c = oFb2int(c);
+            allocated(Heap.TABLE + (long)Heap.ELEMENT*b + (long)Heap.ENTRY*c);
+            stack[base+a].r = new LuaTable(b, c);
             continue;
           }
           case OP_SELF:
@@ -3305,16 +4157,30 @@ reentry:
             continue;
           }
           case OP_JMP:
+          {
+            int j = ARGsBx(i);
             // dojump
-            pc += ARGsBx(i);
+            pc += j;
+            if (j < 0 && (budget.left += j) < 0 && vmBudget(pc))
+            {
+              savedpc = pc;
+              return; // yield
+            }
             continue;
+          }
           case OP_EQ:
             rb = RK(k, ARGB(i));
             rc = RK(k, ARGC(i));
             if (vmEqual(rb, rc) == (a != 0))
             {
               // dojump
-              pc += ARGsBx(code[pc]);
+              int j = ARGsBx(code[pc]);
+              pc += j;
+              if (j < 0 && (budget.left += j) < 0 && vmBudget(pc+1))
+              {
+                savedpc = pc + 1;
+                return; // yield
+              }
             }
             ++pc;
             continue;
@@ -3325,7 +4191,13 @@ reentry:
             if (vmLessthan(rb, rc) == (a != 0))
             {
               // dojump
-              pc += ARGsBx(code[pc]);
+              int j = ARGsBx(code[pc]);
+              pc += j;
+              if (j < 0 && (budget.left += j) < 0 && vmBudget(pc+1))
+              {
+                savedpc = pc + 1;
+                return; // yield
+              }
             }
             ++pc;
             continue;
@@ -3336,7 +4208,13 @@ reentry:
             if (vmLessequal(rb, rc) == (a != 0))
             {
               // dojump
-              pc += ARGsBx(code[pc]);
+              int j = ARGsBx(code[pc]);
+              pc += j;
+              if (j < 0 && (budget.left += j) < 0 && vmBudget(pc+1))
+              {
+                savedpc = pc + 1;
+                return; // yield
+              }
             }
             ++pc;
             continue;
@@ -3344,7 +4222,13 @@ reentry:
             if (isFalse(stack[base+a].r) != (ARGC(i) != 0))
             {
               // dojump
-              pc += ARGsBx(code[pc]);
+              int j = ARGsBx(code[pc]);
+              pc += j;
+              if (j < 0 && (budget.left += j) < 0 && vmBudget(pc+1))
+              {
+                savedpc = pc + 1;
+                return; // yield
+              }
             }
             ++pc;
             continue;
@@ -3355,12 +4239,23 @@ reentry:
               stack[base+a].r = rb.r;
               stack[base+a].d = rb.d;
               // dojump
-              pc += ARGsBx(code[pc]);
+              int j = ARGsBx(code[pc]);
+              pc += j;
+              if (j < 0 && (budget.left += j) < 0 && vmBudget(pc+1))
+              {
+                savedpc = pc + 1;
+                return; // yield
+              }
             }
             ++pc;
             continue;
           case OP_CALL:
           {
+            if (--budget.left < 0 && vmBudget(pc))
+            {
+              savedpc = pc - 1;   // make the call when resumed
+              return; // yield
+            }
             int b = ARGB(i);
             int nresults = ARGC(i) - 1;
             if (b != 0)
@@ -3371,6 +4266,7 @@ reentry:
             switch (vmPrecall(base+a, nresults))
             {
               case PCRLUA:
+              case PCRCONT:
                 nexeccalls++;
                 continue reentry;
               case PCRJ:
@@ -3386,6 +4282,11 @@ reentry:
           }
           case OP_TAILCALL:
           {
+            if (--budget.left < 0 && vmBudget(pc))
+            {
+              savedpc = pc - 1;   // make the call when resumed
+              return; // yield
+            }
             int b = ARGB(i);
             if (b != 0)
             {
@@ -3421,6 +4322,13 @@ reentry:
               {
                 continue;
               }
+              case PCRCONT:     // that left a Lua function to run
+              {
+                // Not a tail call after all; the OP_RETURN that
+                // follows returns the results.
+                nexeccalls++;
+                continue reentry;
+              }
               default:
               {
                 return; // yield
@@ -3438,7 +4346,7 @@ reentry:
             }
             savedpc = pc;
             // 'adjust' replaces aliased 'b' in PUC-Rio code.
-            boolean adjust = vmPoscall(base+a);
+            boolean adjust = vmFinishPcall(vmPoscall(base+a));
             if (--nexeccalls == 0)
             {
               return;
@@ -3447,6 +4355,7 @@ reentry:
             {
               stacksetsize(ci().top());
             }
+            returned = true;
             continue reentry;
           }
           case OP_FORLOOP:
@@ -3463,6 +4372,11 @@ reentry:
               stack[base+a].r = NUMBER;
               stack[base+a+3].d = idx;  // external index
               stack[base+a+3].r = NUMBER;
+              if ((budget.left += ARGsBx(i)) < 0 && vmBudget(pc))
+              {
+                savedpc = pc;
+                return; // yield
+              }
             }
             continue;
           }
@@ -3494,6 +4408,11 @@ reentry:
           }
           case OP_TFORLOOP:
           {
+            if (--budget.left < 0 && vmBudget(pc))
+            {
+              savedpc = pc - 1;   // make the call when resumed
+              return; // yield
+            }
             int cb = base+a+3;  // call base
             stack[cb+2].r = stack[base+a+2].r;
             stack[cb+2].d = stack[base+a+2].d;
@@ -3503,14 +4422,34 @@ reentry:
             stack[cb].d = stack[base+a].d;
             stacksetsize(cb+3);
             savedpc = pc; // Protect
-            vmCall(cb, ARGC(i));
+            // Called like OP_CALL does, rather than with vmCall, so
+            // that the iterator can yield.  When it is a Lua function
+            // vmFinishOp does the rest of this instruction.
+            switch (vmPrecall(cb, ARGC(i)))
+            {
+              case PCRLUA:
+              case PCRCONT:
+                nexeccalls++;
+                continue reentry;
+              case PCRJ:
+                break;
+              default:
+                return; // yield
+            }
             stacksetsize(ci().top());
             if (NIL != stack[cb].r)     // continue loop
             {
               stack[cb-1].r = stack[cb].r;
               stack[cb-1].d = stack[cb].d;
               // dojump
-              pc += ARGsBx(code[pc]);
+              int j = ARGsBx(code[pc]);
+              pc += j + 1;
+              if ((budget.left += j) < 0 && vmBudget(pc))
+              {
+                savedpc = pc;
+                return; // yield
+              }
+              continue;
             }
             ++pc;
             continue;
@@ -3535,7 +4474,7 @@ reentry:
             for (; n > 0; n--)
             {
               Object val = objectAt(base+a+n);
-              t.putnum(last--, val);
+              t.putnum(this, last--, val);
             }
             if (setstack)
             {
@@ -3548,7 +4487,7 @@ reentry:
             continue;
           case OP_CLOSURE:
           {
-            Proto p = function.proto().proto()[ARGBx(i)];
+            Proto p = function.proto().proto(ARGBx(i));
             int nup = p.nups();
             UpVal[] up = new UpVal[nup];
             for (int j=0; j<nup; j++, pc++)
@@ -3564,6 +4503,7 @@ reentry:
                 up[j] = fFindupval(base + ARGB(in));
               }
             }
+            allocated(Heap.FUNCTION + Heap.UPVAL*nup);
             LuaFunction nf = new LuaFunction(p, up, function.getEnv());
             stack[base+a].r = nf;
             continue;
@@ -3781,6 +4721,134 @@ reentry:
     return wanted != MULTRET;
   }
 
+  /**
+   * Completes the pcalls (see {@link #ypcall}) whose functions have
+   * just returned: each returns <code>true</code> and the function's
+   * results.
+   * @param adjust  the result of the {@link #vmPoscall} that returned.
+   * @return likewise, for the last pcall completed.
+   */
+  private boolean vmFinishPcall(boolean adjust)
+  {
+    while (ci().pcall())
+    {
+      CallInfo ci = ci();
+      errfunc = ci.errfunc();
+      int r = ci.base();        // where the results are
+      stacksetsize(stackSize+1);
+      for (int i=stackSize-1; i>r; --i)
+      {
+        stack[i].r = stack[i-1].r;
+        stack[i].d = stack[i-1].d;
+      }
+      stack[r].r = valueOfBoolean(true);
+      adjust = vmPoscall(r);
+    }
+    return adjust;
+  }
+
+  /**
+   * Completes the instruction of the current Lua function that made a
+   * call, when the call returns.  Equivalent to luaV_finishOp in Lua
+   * 5.2, but only OP_CALL and OP_TFORLOOP need it here.
+   * @param adjust  the result of the {@link #vmPoscall} that returned.
+   */
+  private void vmFinishOp(boolean adjust)
+  {
+    CallInfo ci = ci();
+    int[] code = ((LuaFunction)stack[ci.function()].r).proto().code();
+    if (OPCODE(code[savedpc-1]) == OP_TFORLOOP)
+    {
+      savedpc = vmFinishTforloop(code, savedpc);
+    }
+    else if (adjust)
+    {
+      stacksetsize(ci.top());
+    }
+  }
+
+  /**
+   * Does the part of OP_TFORLOOP after the call of the iterator.
+   * @param code  the code of the current Lua function.
+   * @param pc    the pc after the OP_TFORLOOP.
+   * @return the new pc.
+   */
+  private int vmFinishTforloop(int[] code, int pc)
+  {
+    int cb = base + ARGA(code[pc-1]) + 3;
+    stacksetsize(ci().top());
+    if (NIL != stack[cb].r)     // continue loop
+    {
+      stack[cb-1].r = stack[cb].r;
+      stack[cb-1].d = stack[cb].d;
+      // dojump
+      int j = ARGsBx(code[pc]);
+      pc += j;
+      budget.left += j;         // checked at the next safe point
+    }
+    return pc + 1;
+  }
+
+  /**
+   * Completes pending pcalls and the calling instruction when a call
+   * returns other than by OP_RETURN: after a yield, or an error.
+   */
+  private void vmFinish(boolean adjust)
+  {
+    adjust = vmFinishPcall(adjust);
+    if (civ.size() > 1 && isLua(ci()))
+    {
+      vmFinishOp(adjust);
+    }
+  }
+
+  /**
+   * Catches an error for the innermost pcall left to the VM (see
+   * {@link #ypcall}), making it return <code>false</code> and the
+   * error.  Used by {@link #resume}.
+   * @param status  the error status.
+   * @return false if there is no such pcall.
+   */
+  private boolean vmRecover(int status)
+  {
+    for (int i=civ.size()-1; i>0; --i)
+    {
+      CallInfo ci = (CallInfo)civ.elementAt(i);
+      if (ci.pcall())
+      {
+        int level = ci.base();
+        stackgrow(level+2, false);
+        fClose(level);  // close eventual pending closures
+        dSeterrorobj(status, level);
+        nCcalls = 0;
+        civ.setSize(i+1);
+        allowhook = ci.allowhook();
+        errfunc = ci.errfunc();
+        stacksetsize(level+2);
+        stack[level+1].r = stack[level].r;
+        stack[level+1].d = stack[level].d;
+        stack[level].r = valueOfBoolean(false);
+        vmFinish(vmPoscall(level));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Number of Lua functions on the call stack, for vmExecute. */
+  private int luaFrames()
+  {
+    int n = 0;
+    for (int i=civ.size()-1; i>0; --i)
+    {
+      if (isLua((CallInfo)civ.elementAt(i)))
+      {
+        ++n;
+      }
+    }
+    return n;
+  }
+
   /**
    * Equivalent of LuaD_precall.  This method expects that the arguments
    * to the function are placed above the function on the stack.
@@ -3823,6 +4891,7 @@ reentry:
       savedpc = 0;
       // expand stack to the function's max stack size.
       stacksetsize(top);
+      checkcalls();
       // :todo: implement call hook.
       return PCRLUA;
     }
@@ -3832,6 +4901,7 @@ reentry:
       // :todo: checkstack (not sure it's necessary)
       base = func + 1;
       inc_ci(func, base, stackSize+MINSTACK, r);
+      checkcalls();
       // :todo: call hook
       int n = 99;
       try
@@ -3848,6 +4918,10 @@ reentry:
 //        yield(0);
         throw e;
       }
+      if (n == CONTINUE)        // left a Lua function to run?
+      {
+        return PCRCONT;
+      }
       if (n < 0)        // yielding?
       {
         return PCRYIELD;
@@ -3901,12 +4975,6 @@ reentry:
     gRunerror("loop in settable");
   }
 
-  /**
-   * Printf format item used to convert numbers to strings (in {@link
-   * #vmTostring}).  The initial '%' should be not specified.
-   */
-  private static final String NUMBER_FMT = ".14g";
-
   private static String vmTostring(Object o)
   {
     if (o instanceof String)
@@ -3923,18 +4991,8 @@ reentry:
     // Formerly this code used Double.toString (and remove any trailing
     // ".0") but this does not give an accurate emulation of the PUC-Rio
     // behaviour which Intuwave require.  So now we use "%.14g" like
-    // PUC-Rio.
-    // :todo: consider optimisation of making FormatItem an immutable
-    // class and keeping a static reference to the required instance
-    // (which never changes).  A possible half-way house would be to
-    // create a copied instance from an already create prototype
-    // instance which would be faster than parsing the format string
-    // each time.
-    FormatItem f = new FormatItem(null, NUMBER_FMT);
-    StringBuffer b = new StringBuffer();
-    Double d = (Double)o;
-    f.formatFloat(b, d.doubleValue());
-    return b.toString();
+    // PUC-Rio, via a formatter dedicated to that format.
+    return NumberFormatter.format(((Double)o).doubleValue());
   }
 
   /** Equivalent of adjust_varargs in "ldo.c". */
@@ -4092,6 +5150,35 @@ reentry:
     return x - Math.floor(x/y)*y;
   }
 
+  /**
+   * Makes the stack array hold at least <var>n</var> slots, counting
+   * the growth against the memory limit (see {@link #allocated}).
+   * Where an error is being handled <var>raise</var> is false, so that
+   * going over the limit cannot raise a memory error in its place.
+   */
+  private void stackgrow(int n, boolean raise)
+  {
+    if (n <= stack.length)
+    {
+      return;
+    }
+    int newLength = Math.max(n, 2 * stack.length);
+    long bytes = (long)Heap.STACKSLOT*(newLength - stack.length);
+    if (raise)
+    {
+      allocated(bytes);
+    }
+    else
+    {
+      heap.count += bytes;
+    }
+    Slot[] newStack = new Slot[newLength];
+    // Currently the stack only ever grows, so the number of items to
+    // copy is the length of the old stack.
+    System.arraycopy(stack, 0, newStack, 0, stack.length);
+    stack = newStack;
+  }
+
   /**
    * Changes the stack size, padding with NIL where necessary, and
    * allocate a new stack array if necessary.
@@ -4102,18 +5189,12 @@ reentry:
     // elements that are common to both old and new stack are unchanged.
 
     // First implementation of this simply ensures that the stack array
-    // has at least the required size number of elements.
-    // :todo: consider policies where the stack may also shrink.
+    // has at least the required size number of elements.  The array
+    // only shrinks in stackshrink, when a thread is suspended.
     int old = stackSize;
     if (n > stack.length)
     {
-      int newLength = Math.max(n, 2 * stack.length);
-      Slot[] newStack = new Slot[newLength];
-      // Currently the stack only ever grows, so the number of items to
-      // copy is the length of the old stack.
-      int toCopy = stack.length;
-      System.arraycopy(stack, 0, newStack, 0, toCopy);
-      stack = newStack;
+      stackgrow(n, true);
     }
     stackSize = n;
     // Nilling out.  The VM requires that fresh stack slots allocated
@@ -4149,6 +5230,31 @@ reentry:
     }
   }
 
+  /**
+   * Shrinks the stack array of a thread that {@link #resume} is
+   * returning from, when it is much larger than the thread's frames
+   * need, so that suspended coroutines do not keep the stack they
+   * needed at their deepest.  The slots that are kept are the same
+   * Slot instances, so open upvalues still refer to them.
+   */
+  private void stackshrink()
+  {
+    int n = stackSize;
+    for (int i=civ.size()-1; i>=0; --i)
+    {
+      n = Math.max(n, ((CallInfo)civ.elementAt(i)).top());
+    }
+    if (stack.length <= 2*n + MINSTACK)
+    {
+      return;
+    }
+    heap.count -= Heap.STACKSLOT*(stack.length - n);
+    Slot[] newStack = new Slot[n];
+    System.arraycopy(stack, 0, newStack, 0, n);
+    stack = newStack;
+    stackhighwater = Math.min(stackhighwater, n);
+  }
+
   /**
    * Pushes a Lua value onto the stack.
    */
@@ -4159,6 +5265,43 @@ reentry:
     stack[i].setObject(o);
   }
 
+  /**
+   * Calls the function <var>f</var> with the arguments <var>a</var>
+   * and <var>b</var>, and tests its first result.  The call is made in
+   * the three slots at the top of the stack, which are left there
+   * afterwards, so a Java function that calls <var>f</var> many times
+   * reuses the same frame without pushing, boxing or popping.  Used by
+   * table.sort for its order function.
+   * @return whether the result is neither <code>nil</code> nor
+   * <code>false</code>.
+   */
+  boolean callTest(Object f, Object a, Object b)
+  {
+    int func = stackSize;
+    stacksetsize(func+3);
+    stack[func].r = f;
+    stack[func+1].setObject(a);
+    stack[func+2].setObject(b);
+    vmCall(func, 1);
+    Object r = stack[func].r;
+    stacksetsize(func);
+    return r != NIL && !Boolean.FALSE.equals(r);
+  }
+
+  /**
+   * Pushes the <var>n</var> elements of <var>t</var> starting at key
+   * <var>i</var>, growing the stack once.  Used by unpack.
+   */
+  void pushTable(LuaTable t, int i, int n)
+  {
+    int top = stackSize;
+    stacksetsize(top+n);
+    for (int k=0; k<n; ++k)
+    {
+      setObjectAt(t.getnum(i+k), top+k);
+    }
+  }
+
   /**
    * Copies a slot into a new space in the stack.
    */
@@ -4193,6 +5336,41 @@ reentry:
     hookcount = basehookcount;
   }
 
+  /**
+   * Called by the VM when the instruction budget has gone below 0, at
+   * a point where it can yield.  Raises the error, or sets the thread
+   * up to yield, see {@link #setInstructionBudget}.
+   * @param pc  the pc, for the error message.
+   * @return true if the VM should yield.
+   */
+  private boolean vmBudget(int pc)
+  {
+    Budget b = budget;
+    if (b.size == 0)
+    {
+      b.left = Integer.MAX_VALUE;
+      return false;
+    }
+    if (b.yield)
+    {
+      if (nCcalls == 0 && b.resumes == 1 && allowhook)
+      {
+        b.left = b.size;
+        base = stackSize;     // no results, as yield(0)
+        status = YIELD;
+        return true;
+      }
+      if (-b.left <= b.size)
+      {
+        return false;   // try again at the next chance
+      }
+    }
+    b.left = -b.size - 1;       // stays used up
+    savedpc = pc;
+    gRunerror("instruction budget exceeded");
+    return false;
+  }
+
   /**
    * Equivalent of traceexec in lvm.c.
    */
@@ -4330,6 +5508,28 @@ reentry:
     return ci;
   }
 
+  /**
+   * Equivalent to the LUAI_MAXCALLS test in growCI from ldo.c.  Called
+   * just after a CallInfo has been pushed.  Crossing MAXCALLS raises
+   * "stack overflow"; the error handler runs on the levels above it,
+   * and going 200 levels past is an error in error handling.
+   */
+  private void checkcalls()
+  {
+    int n = civ.size();
+    if (n > MAXCALLS)
+    {
+      if (n == MAXCALLS+1)
+      {
+        gRunerror("stack overflow");
+      }
+      else if (n > MAXCALLS+200)
+      {
+        dThrow(ERRERR);         // error while handling overflow
+      }
+    }
+  }
+
   /** Pop topmost CallInfo record and return it. */
   private CallInfo dec_ci()
   {
@@ -4340,6 +5540,7 @@ reentry:
   /** Equivalent to resume_error from ldo.c */
   private int resume_error(String msg)
   {
+    stackgrow(ci().base()+1, false);
     stacksetsize(ci().base());
     stackAdd(msg);
     return ERRRUN;
@@ -4410,10 +5611,9 @@ final class DumpState
   {
     /*
      * In order to make the code more compact the dumper re-uses the
-     * header defined in Loader.java.  It has to fix the endianness byte
-     * first.
+     * header defined in Loader.java.  Its endianness byte is 0, which
+     * is what the dumper writes (big-endian).
      */
-    Loader.HEADER[6] = 0;
     writer.write(Loader.HEADER) ;
   }
 
@@ -4424,7 +5624,7 @@ final class DumpState
 
   private void DumpNumber(double d) throws IOException
   {
-    writer.writeDouble(d) ;     // big-endian
+    writer.writeLong(Loader.doubleToLongBits(d)) ;     // big-endian
   }
 
   void DumpFunction(Proto f, String p) throws IOException
@@ -4486,7 +5686,7 @@ final class DumpState
     DumpInt(n) ;
     for (int i = 0 ; i < n ; i++)
     {
-      Proto subfunc = f.p[i] ;
+      Proto subfunc = f.proto(i) ;
       DumpFunction(subfunc, f.source) ;
     }
   }
@@ -4500,19 +5700,46 @@ final class DumpState
     else
     {
       /*
-       * Strings are dumped by converting to UTF-8 encoding.  The MIDP
-       * 2.0 spec guarantees that this encoding will be supported (see
-       * page 9 of midp-2_0-fr-spec.pdf).  Nonetheless, any
-       * possible UnsupportedEncodingException is left to be thrown
-       * (it's a subclass of IOException which is declared to be thrown).
+       * Strings are dumped by converting to UTF-8 encoding.  The GWT
+       * JRE emulation has no String.getBytes(String) so the encoding
+       * is done by hand; see Loader.string for the inverse.
        */
-/*
- *       byte [] contents = s.getBytes("UTF-8") ;
-      int size = contents.length ;
+      int n = s.length() ;
+      int size = 0 ;
+      for (int i = 0 ; i < n ; ++i)
+      {
+        char c = s.charAt(i) ;
+        size += c < 0x80 ? 1 : c < 0x800 ? 2 : 3 ;
+      }
       DumpInt(size+1) ;
-      writer.write(contents, 0, size) ;
+      if (size == n)
+      {
+        for (int i = 0 ; i < n ; ++i)
+          writer.write(s.charAt(i)) ;
+      }
+      else
+      {
+        for (int i = 0 ; i < n ; ++i)
+        {
+          char c = s.charAt(i) ;
+          if (c < 0x80)
+          {
+            writer.write(c) ;
+          }
+          else if (c < 0x800)
+          {
+            writer.write(0xc0 | (c >> 6)) ;
+            writer.write(0x80 | (c & 0x3f)) ;
+          }
+          else
+          {
+            writer.write(0xe0 | (c >> 12)) ;
+            writer.write(0x80 | ((c >> 6) & 0x3f)) ;
+            writer.write(0x80 | (c & 0x3f)) ;
+          }
+        }
+      }
       writer.writeByte(0) ;
-*/
     }
   }
 
@@ -4527,18 +5754,18 @@ final class DumpState
     }
 
     int n = f.sizelineinfo;
+    int[] lineinfo = f.lineinfo();
     DumpInt(n);
     for (int i=0; i<n; i++)
-      DumpInt(f.lineinfo[i]) ;
+      DumpInt(lineinfo[i]) ;
 
     n = f.sizelocvars;
     DumpInt(n);
     for (int i=0; i<n; i++)
     {
-      LocVar locvar = f.locvars[i] ;
-      DumpString(locvar.varname);
-      DumpInt(locvar.startpc);
-      DumpInt(locvar.endpc);
+      DumpString(f.locvarname(i));
+      DumpInt(f.locvarstart(i));
+      DumpInt(f.locvarend(i));
     }
 
     n = f.sizeupvalues;
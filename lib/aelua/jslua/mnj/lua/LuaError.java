@@ -25,7 +25,10 @@
 package mnj.lua;
 
 /**
- * Represent a Lua error
+ * Represent a Lua error.  The error value itself is on the Lua stack.
+ * A LuaError does not record the Java stack trace unless asked to:
+ * errors are used for control flow under <code>pcall</code> and
+ * capturing the stack of the VM's recursion is costly.
  */
 final class LuaError extends RuntimeException
 {
@@ -41,4 +44,23 @@ final class LuaError extends RuntimeException
     super(s);
     this.errorStatus = errorStatus;
   }
+  /**
+   * @param trace  whether to record the Java stack trace, see {@link
+   * Lua#setErrorTrace}.
+   */
+  LuaError(int errorStatus, String s, boolean trace)
+  {
+    super(s);
+    this.errorStatus = errorStatus;
+    if (trace)
+    {
+      super.fillInStackTrace();
+    }
+  }
+
+  /** Does nothing, see the class comment. */
+  public Throwable fillInStackTrace()
+  {
+    return this;
+  }
 }
@@ -38,6 +38,7 @@ final class LuaInternal extends LuaJavaCallback
 {
   private InputStream stream;
   private Reader reader;
+  private String source;
   private String chunkname;
 
   LuaInternal(InputStream in, String chunkname)
@@ -52,15 +53,26 @@ final class LuaInternal extends LuaJavaCallback
     this.chunkname = chunkname;
   }
 
+  /** Chunk held in a string, see {@link Lua#compile}. */
+  LuaInternal(String source, String chunkname)
+  {
+    this.source = source;
+    this.chunkname = chunkname;
+  }
+
   public int luaFunction(Lua L)
   {
     try
     {
       Proto p = null;
 
+      if (source != null)
+      {
+        p = L.compile(source, chunkname);
+      }
       // In either the stream or the reader case there is a way of
       // converting the input to the other type.
-      if (stream != null)
+      else if (stream != null)
       {
         stream.mark(1);
         int c = stream.read();
@@ -71,12 +83,12 @@ final class LuaInternal extends LuaJavaCallback
         if (c == Loader.HEADER[0])
         {
           Loader l = new Loader(stream, chunkname);
-          p = l.undump();
+          p = l.undump(L.lazyLoad(), L.stripDebug());
         }
         else
         {
           reader = new InputStreamReader(stream, "UTF-8");
-          p = Syntax.parser(L, reader, chunkname);
+          p = Syntax.parser(reader, chunkname, L.optimise());
         }
       }
       else
@@ -93,19 +105,23 @@ final class LuaInternal extends LuaJavaCallback
           {
             stream = new FromReader(reader);
             Loader l = new Loader(stream, chunkname);
-            p = l.undump();
+            p = l.undump(L.lazyLoad(), L.stripDebug());
           }
           else
           {
-            p = Syntax.parser(L, reader, chunkname);
+            p = Syntax.parser(reader, chunkname, L.optimise());
           }
         }
         else
         {
-          p = Syntax.parser(L, reader, chunkname);
+          p = Syntax.parser(reader, chunkname, L.optimise());
         }
       }
 
+      if (L.stripDebug())
+      {
+        p.strip();
+      }
       L.push(new LuaFunction(p,
           new UpVal[0],
           L.getGlobals()));
@@ -117,5 +133,11 @@ final class LuaInternal extends LuaJavaCallback
       L.dThrow(Lua.ERRFILE);
       return 0;
     }
+    catch (SyntaxError e)
+    {
+      L.push(e.getMessage());
+      L.dThrow(e.errorStatus);
+      return 0;
+    }
   }
 }
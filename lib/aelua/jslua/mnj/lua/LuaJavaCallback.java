@@ -40,4 +40,19 @@ package mnj.lua;
 public abstract class LuaJavaCallback
 {
   abstract public int luaFunction(Lua L);
+
+  /**
+   * The copy of this function in a state forked by {@link Lua#fork}.
+   * A function that refers to tables (or other Lua values) of its
+   * state must override this to return a copy that refers to the
+   * fork's instead, obtained from {@link Fork#table} or {@link
+   * Fork#value}; otherwise the fork would change the template's
+   * tables.  Most functions don't, and return themselves.
+   * @param f  the fork being made.
+   * @return the fork's copy of this function.
+   */
+  protected LuaJavaCallback fork(Fork f)
+  {
+    return this;
+  }
 }
@@ -0,0 +1,348 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * Pool of initialised Lua states, for running many short scripts
+ * (one per request, say) without paying for a fresh state and its
+ * libraries each time.
+ * <p>
+ * {@link #acquire} hands out a state whose libraries are already
+ * open (see {@link #open}); {@link #release} takes it back.  Between
+ * the two the state sees a fresh, empty globals table, its overlay,
+ * whose metatable indexes the globals left by {@link #open}.  So
+ * the library functions are visible, but global variables set by one
+ * user of the state are not seen by the next.  <code>_G</code> refers
+ * to the overlay.  Modules added to <code>package.loaded</code> are
+ * removed on release.  Note that the library tables themselves
+ * (<code>string</code>, <code>table</code>, and so on) are shared,
+ * and a script that modifies them affects later users of the state.
+ * </p>
+ * <p>
+ * On release the state's stack, call information and open upvalues
+ * are reset; the libraries are not reopened.  Hooks (see {@link
+ * Lua#setHook}) and the settings made by {@link #open} are kept.
+ * Userdata with a <code>__gc</code> metamethod that the state can no
+ * longer reach are finalised, as {@link Lua#close} would, so a host
+ * that keeps such a userdata outside the state must also keep it
+ * reachable from it (in the registry, say).
+ * </p>
+ * <p>
+ * Idle states are kept up to the pool size, and discarded once they
+ * have been idle for longer than the idle timeout.  A state that is
+ * not released within the leak timeout is reported to {@link
+ * #leaked}.  GWT has no timers, so both checks are made whenever a
+ * state is acquired or released, and by {@link #evict}.
+ * </p>
+ */
+public class LuaPool
+{
+  /** Maximum number of idle states kept. */
+  private int size;
+  /** Milliseconds after which an idle state is discarded, or 0. */
+  private long idleTimeout;     // = 0;
+  /** Milliseconds after which an acquired state is leaked, or 0. */
+  private long leakTimeout;     // = 0;
+  /** Idle states, as PoolEntry, least recently released first. */
+  private Vector idle = new Vector();
+  /** Map from each state handed out to its PoolEntry. */
+  private HashMap busy = new HashMap();
+
+  /**
+   * Creates an empty pool.
+   * @param size  maximum number of idle states to keep.
+   */
+  public LuaPool(int size)
+  {
+    if (size < 0)
+    {
+      throw new IllegalArgumentException();
+    }
+    this.size = size;
+  }
+
+  /**
+   * Sets the idle timeout.  States that have been idle for longer are
+   * discarded.  0, the default, means never.
+   * @param ms  timeout in milliseconds.
+   */
+  public void setIdleTimeout(long ms)
+  {
+    idleTimeout = ms;
+  }
+
+  /**
+   * Sets the leak timeout.  States that have not been released after
+   * this long are passed to {@link #leaked}, once.  0, the default,
+   * means never.
+   * @param ms  timeout in milliseconds.
+   */
+  public void setLeakTimeout(long ms)
+  {
+    leakTimeout = ms;
+  }
+
+  /**
+   * Initialises a new state.  The default implementation opens the
+   * same libraries as a standalone interpreter does: base, package,
+   * string, table, math and os.  Override to open different
+   * libraries, to preload modules, or to change the settings of the
+   * state.
+   * @param L  the new state.
+   */
+  protected void open(Lua L)
+  {
+    BaseLib.open(L);
+    PackageLib.open(L);
+    StringLib.open(L);
+    TableLib.open(L);
+    MathLib.open(L);
+    OSLib.open(L);
+  }
+
+  /**
+   * Called when a state has not been released within the leak
+   * timeout.  The default implementation does nothing; override to
+   * report the leak.  The state is still counted as in use and may
+   * still be released.
+   * @param L  the state.
+   */
+  protected void leaked(Lua L)
+  {
+  }
+
+  /**
+   * Gets a state, taking an idle one if there is one and creating a
+   * new one otherwise.  The state has an empty stack and a fresh
+   * globals overlay.
+   * @return the state, to be handed back with {@link #release}.
+   */
+  public Lua acquire()
+  {
+    long now = System.currentTimeMillis();
+    evict(now);
+    PoolEntry e;
+    int n = idle.size();
+    if (n > 0)
+    {
+      e = (PoolEntry)idle.elementAt(n-1);
+      idle.setSize(n-1);
+    }
+    else
+    {
+      Lua L = new Lua();
+      open(L);
+      e = new PoolEntry(L);
+    }
+    e.begin();
+    e.time = now;
+    e.leaked = false;
+    busy.put(e.L, e);
+    return e.L;
+  }
+
+  /**
+   * Returns a state to the pool.  The state must not be used
+   * afterwards.
+   * @param L  a state returned by {@link #acquire}.
+   * @throws IllegalArgumentException if <var>L</var> was not acquired
+   * from this pool, or has already been released.
+   */
+  public void release(Lua L)
+  {
+    PoolEntry e = (PoolEntry)busy.remove(L);
+    if (e == null)
+    {
+      throw new IllegalArgumentException();
+    }
+    long now = System.currentTimeMillis();
+    L.reset();
+    e.end();
+    if (idle.size() < size)
+    {
+      L.finalise();
+      e.time = now;
+      idle.addElement(e);
+    }
+    else
+    {
+      L.close();
+    }
+    evict(now);
+  }
+
+  /**
+   * Discards states that have been idle for longer than the idle
+   * timeout, and reports states that have been in use for longer than
+   * the leak timeout.  Called by {@link #acquire} and {@link
+   * #release}; call it periodically if the pool may sit unused.
+   */
+  public void evict()
+  {
+    evict(System.currentTimeMillis());
+  }
+
+  private void evict(long now)
+  {
+    if (idleTimeout > 0)
+    {
+      int i = 0;
+      while (i < idle.size() &&
+          now - ((PoolEntry)idle.elementAt(i)).time > idleTimeout)
+      {
+        ++i;
+      }
+      while (--i >= 0)
+      {
+        ((PoolEntry)idle.elementAt(0)).L.close();
+        idle.removeElementAt(0);
+      }
+    }
+    if (leakTimeout > 0)
+    {
+      Vector leak = null;
+      Iterator it = busy.values().iterator();
+      while (it.hasNext())
+      {
+        PoolEntry e = (PoolEntry)it.next();
+        if (!e.leaked && now - e.time > leakTimeout)
+        {
+          e.leaked = true;
+          if (leak == null)
+          {
+            leak = new Vector();
+          }
+          leak.addElement(e.L);
+        }
+      }
+      // Called afterwards in case leaked releases the state.
+      for (int i=0; leak != null && i<leak.size(); ++i)
+      {
+        leaked((Lua)leak.elementAt(i));
+      }
+    }
+  }
+
+  /** Number of idle states in the pool. */
+  public int idle()
+  {
+    return idle.size();
+  }
+
+  /** Number of states acquired and not yet released. */
+  public int busy()
+  {
+    return busy.size();
+  }
+}
+
+/**
+ * A state in a {@link LuaPool}, with what is needed to reset it.
+ */
+final class PoolEntry
+{
+  final Lua L;
+  /** Globals as left by {@link LuaPool#open}. */
+  private final LuaTable global;
+  /** Metatable for each overlay. */
+  private final LuaTable overlay;
+  /** The registry's _LOADED table, and its contents after open. */
+  private final LuaTable loaded;
+  private final Object[] loadedKey;
+  private final Object[] loadedValue;
+  /** When acquired or released. */
+  long time;
+  /** Whether {@link LuaPool#leaked} has been called. */
+  boolean leaked;
+
+  PoolEntry(Lua L)
+  {
+    this.L = L;
+    global = L.getGlobals();
+    overlay = new LuaTable();
+    L.setField(overlay, "__index", global);
+    // Stops scripts reaching the shared globals with getmetatable.
+    L.setField(overlay, "__metatable", Lua.valueOfBoolean(false));
+    Object o = L.getField(L.getRegistry(), Lua.LOADED);
+    if (o instanceof LuaTable)
+    {
+      loaded = (LuaTable)o;
+      Vector k = new Vector();
+      Enumeration e = loaded.keys();
+      while (e.hasMoreElements())
+      {
+        k.addElement(e.nextElement());
+      }
+      loadedKey = new Object[k.size()];
+      k.copyInto(loadedKey);
+      loadedValue = new Object[loadedKey.length];
+      for (int i=0; i<loadedKey.length; ++i)
+      {
+        loadedValue[i] = loaded.getlua(loadedKey[i]);
+      }
+    }
+    else
+    {
+      loaded = null;
+      loadedKey = null;
+      loadedValue = null;
+    }
+  }
+
+  /** Gives the state a fresh globals overlay. */
+  void begin()
+  {
+    LuaTable t = new LuaTable();
+    t.setMetatable(overlay);
+    L.setField(t, "_G", t);
+    L.setFenv(L, t);
+  }
+
+  /** Drops the overlay and restores the _LOADED table. */
+  void end()
+  {
+    L.setFenv(L, global);
+    if (loaded == null)
+    {
+      return;
+    }
+    Vector k = new Vector();
+    Enumeration e = loaded.keys();
+    while (e.hasMoreElements())
+    {
+      k.addElement(e.nextElement());
+    }
+    for (int i=0; i<k.size(); ++i)
+    {
+      loaded.putlua(L, k.elementAt(i), Lua.NIL);
+    }
+    for (int i=0; i<loadedKey.length; ++i)
+    {
+      loaded.putlua(L, loadedKey[i], loadedValue[i]);
+    }
+  }
+}
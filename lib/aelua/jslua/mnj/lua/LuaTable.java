@@ -66,11 +66,107 @@ public final class LuaTable extends java.util.HashMap
    */
   private boolean inrehash;     // = false;
 
+  /**
+   * Whether the contents of the table have still to be filled in,
+   * from <var>cow</var> or <var>lazy</var>.  Every method that looks
+   * at the contents calls {@link #fill} first when this is set.
+   */
+  private boolean pending;      // = false;
+  /**
+   * For a table of a forked state (see {@link Lua#fork}) that has not
+   * been used yet, the template's table that it is a copy of, and the
+   * fork.
+   */
+  private LuaTable cow;         // = null;
+  private Fork fork;            // = null;
+  /** Fields to add when first used, see {@link #lazy}. */
+  private Object[] lazy;        // = null;
+
   LuaTable()
   {
     super(1);
   }
 
+  /** Copy, on first use, of <var>cow</var>; see {@link Fork}. */
+  LuaTable(LuaTable cow, Fork fork)
+  {
+    super(1);
+    this.cow = cow;
+    this.fork = fork;
+    this.pending = true;
+  }
+
+  /**
+   * Makes the table get some fields when it is first used, rather than
+   * now.  Used by libraries so that a Lua state only fills in the
+   * library tables that its scripts use.  The array is not copied, so
+   * it can be shared by every state; a library's function objects
+   * hold only their "which" code, so they too are created once and
+   * shared.  The fields are added with <code>super.put</code>, so
+   * they are not counted in the state's memory estimate (see {@link
+   * Heap}) until it is next measured.
+   * @param kv  keys and values, alternately.  Keys must not be
+   *            numbers.
+   */
+  void lazy(Object[] kv)
+  {
+    if (pending)
+    {
+      fill();
+    }
+    lazy = kv;
+    pending = true;
+  }
+
+  /** Fills in the contents of a pending table. */
+  private void fill()
+  {
+    pending = false;
+    if (cow != null)
+    {
+      copy();
+    }
+    if (lazy != null)
+    {
+      Object[] kv = lazy;
+      lazy = null;
+      for (int i=0; i<kv.length; i+=2)
+      {
+        super.put(kv[i], kv[i+1]);
+      }
+    }
+  }
+
+  /** Fills in a table made by {@link Fork#table}. */
+  private void copy()
+  {
+    LuaTable t = cow;
+    Fork f = fork;
+    cow = null;
+    fork = null;
+    if (t.pending)
+    {
+      t.fill();
+    }
+    int n = t.sizeArray;
+    if (n > 0)
+    {
+      array = new Object[n];
+      for (int i=0; i<n; ++i)
+      {
+        array[i] = f.value(t.array[i]);
+      }
+      sizeArray = n;
+    }
+    Iterator it = t.entrySet().iterator();
+    while (it.hasNext())
+    {
+      java.util.Map.Entry e = (java.util.Map.Entry)it.next();
+      super.put(f.value(e.getKey()), f.value(e.getValue()));
+    }
+    metatable = f.table(t.metatable);
+  }
+
   /**
    * Fresh LuaTable with hints for preallocating to size.
    * @param narray  number of array slots to preallocate.
@@ -207,11 +303,10 @@ public final class LuaTable extends java.util.HashMap
   {
     int totaluse = 0;   // total number of elements
     int ause = 0;       // summation of nums
-    Iterator e;
-    e = (Iterator)super.values();
+    Iterator e = super.keySet().iterator();
     while (e.hasNext())
     {
-      Object o =e. next();
+      Object o = e.next();
       ause += countint(o, nums);
       ++totaluse;
     }
@@ -295,6 +390,10 @@ public final class LuaTable extends java.util.HashMap
    */
   LuaTable getMetatable()
   {
+    if (pending)
+    {
+      fill();
+    }
     return metatable;
   }
   /**
@@ -305,8 +404,18 @@ public final class LuaTable extends java.util.HashMap
   //        This involves detecting when those keys are present in the
   //        metatable, and changing all the entries in the Hashtable
   //        to be instance of java.lang.Ref as appropriate.
+  //        Not possible while this code has to compile with GWT, which
+  //        has no java.lang.ref (and JavaScript has no weak references
+  //        it could use), so weak tables are ordinary strong tables.
+  //        Clearing them at other times (say on collectgarbage) is not
+  //        an option: entries whose keys or values are still in use
+  //        would disappear.
   void setMetatable(LuaTable metatable)
   {
+    if (pending)
+    {
+      fill();
+    }
     this.metatable = metatable;
     return;
   }
@@ -317,6 +426,10 @@ public final class LuaTable extends java.util.HashMap
    */
   int getn()
   {
+    if (pending)
+    {
+      fill();
+    }
     int j = sizeArray;
     if (j > 0 && array[j-1] == Lua.NIL)
     {
@@ -381,6 +494,10 @@ public final class LuaTable extends java.util.HashMap
    */
   public Object getlua(Object key)
   {
+    if (pending)
+    {
+      fill();
+    }
     if (key instanceof Double)
     {
       double d = ((Double)key).doubleValue();
@@ -407,6 +524,10 @@ public final class LuaTable extends java.util.HashMap
    */
   public void getlua(Slot key, Slot value)
   {
+    if (pending)
+    {
+      fill();
+    }
     if (key.r == Lua.NUMBER)
     {
       double d = key.d;
@@ -431,6 +552,10 @@ public final class LuaTable extends java.util.HashMap
   /** Like get for numeric (integer) keys. */
   public Object getnum(int k)
   {
+    if (pending)
+    {
+      fill();
+    }
     if (k <= sizeArray && k >= 1)
     {
       return array[k-1];
@@ -456,6 +581,10 @@ public final class LuaTable extends java.util.HashMap
    */
   public void putlua(Lua L, Object key, Object value)
   {
+    if (pending)
+    {
+      fill();
+    }
     double d = 0.0;
     int i = Integer.MAX_VALUE;
 
@@ -489,7 +618,15 @@ public final class LuaTable extends java.util.HashMap
       remove(key);
       return;
     }
-    super.put(key, value);
+    if (i == sizeArray+1 && grow(L, key))
+    {
+      array[i-1] = value;
+      return;
+    }
+    if (super.put(key, value) == null && L != null)
+    {
+      L.allocated(Heap.ENTRY);
+    }
     // This check is necessary because sometimes the call to super.put
     // can rehash and the new (k,v) pair should be in the array part
     // after the rehash, but is still in the hash part.
@@ -502,6 +639,10 @@ public final class LuaTable extends java.util.HashMap
 
   public void putlua(Lua L, Slot key, Object value)
   {
+    if (pending)
+    {
+      fill();
+    }
     int i = Integer.MAX_VALUE;
 
     if (key.r == Lua.NUMBER)
@@ -528,7 +669,15 @@ public final class LuaTable extends java.util.HashMap
       remove(k);
       return;
     }
-    super.put(k, value);
+    if (i == sizeArray+1 && grow(L, k))
+    {
+      array[i-1] = value;
+      return;
+    }
+    if (super.put(k, value) == null && L != null)
+    {
+      L.allocated(Heap.ENTRY);
+    }
     if (i <= sizeArray)
     {
       remove(k);
@@ -541,15 +690,179 @@ public final class LuaTable extends java.util.HashMap
    */
   public void putnum(int k, Object v)
   {
+    putnum(null, k, v);
+  }
+
+  /**
+   * Like {@link #putnum(int, Object)}, counting any growth of the
+   * table against the state <var>L</var> (see {@link Heap}).
+   * <var>L</var> may be null.
+   */
+  void putnum(Lua L, int k, Object v)
+  {
+    if (pending)
+    {
+      fill();
+    }
     if (k <= sizeArray && k >= 1)
     {
       array[k-1] = v;
       return;
     }
-    // The key can never be NIL so putlua will never notice that its L
+    // The key can never be NIL so putlua will never notice if its L
     // argument is null.
     // :todo: optimisation to avoid putlua checking for array part again
-    putlua(null, new Double(k), v);
+    putlua(L, new Double(k), v);
+  }
+
+  /**
+   * Doubles the array part, when a value is stored at the key just
+   * past its end, so that sequences built by appending live in the
+   * array part.  Does nothing if <var>key</var> is already in the hash
+   * part, so that assigning to an existing field never rearranges the
+   * table (which is allowed during a traversal).
+   * @param L  the state to count the growth against, or null.
+   * @param key  the key <code>sizeArray+1</code>.
+   * @return true if the array part now holds <var>key</var>.
+   */
+  private boolean grow(Lua L, Object key)
+  {
+    if (sizeArray >= MAXASIZE/2 || super.containsKey(key))
+    {
+      return false;
+    }
+    int n = sizeArray < 4 ? 4 : 2*sizeArray;
+    if (L != null)
+    {
+      L.allocated(Heap.ELEMENT*(n - sizeArray));
+    }
+    resize(n);
+    return true;
+  }
+
+  /**
+   * Copies the values at keys <var>f</var> to <var>e</var> of
+   * <var>a1</var> to the keys starting at <var>t</var> of
+   * <var>a2</var>, like Lua 5.3's <code>table.move</code>.  The ranges
+   * may overlap.  Ranges inside the array parts are copied with
+   * <code>System.arraycopy</code>.  Any growth of <var>a2</var> is
+   * counted against <var>L</var> (see {@link Heap}).
+   */
+  static void move(Lua L, LuaTable a1, int f, int e, int t, LuaTable a2)
+  {
+    if (a1.pending)
+    {
+      a1.fill();
+    }
+    if (a2.pending)
+    {
+      a2.fill();
+    }
+    if (e < f)
+    {
+      return;
+    }
+    int n = e - f;      // number of elements, less one
+    if (a1 != a2)
+    {
+      // The ranges cannot overlap, so copy upwards: each store just
+      // past the end of a2's array part then grows it (see grow).
+      if (f >= 1 && t >= 1 && e <= a1.sizeArray && t+n <= a2.sizeArray)
+      {
+        System.arraycopy(a1.array, f-1, a2.array, t-1, n+1);
+        return;
+      }
+      for (int i=0; i<=n; ++i)
+      {
+        a2.putnum(L, t+i, a1.getnum(f+i));
+      }
+      return;
+    }
+    if (t > f)
+    {
+      // Moving up within a table must copy from the top down.  Storing
+      // the last element first grows the array part when that element
+      // lands just past its end, as it does for table.insert.
+      a1.putnum(L, t+n, a1.getnum(e));
+      if (f >= 1 && e-1 <= a1.sizeArray && t+n-1 <= a1.sizeArray)
+      {
+        System.arraycopy(a1.array, f-1, a1.array, t-1, n);
+        return;
+      }
+      for (int i=n-1; i>=0; --i)
+      {
+        a1.putnum(L, t+i, a1.getnum(f+i));
+      }
+      return;
+    }
+    if (f >= 1 && t >= 1 && e <= a1.sizeArray)
+    {
+      System.arraycopy(a1.array, f-1, a1.array, t-1, n+1);
+      return;
+    }
+    for (int i=0; i<=n; ++i)
+    {
+      a1.putnum(L, t+i, a1.getnum(f+i));
+    }
+  }
+
+  /**
+   * Stores <code>a[0..n-1]</code> at the keys 1 to <var>n</var>.  When
+   * <var>n</var> is beyond the array part the elements move into the
+   * array part, which then becomes <var>a</var> itself; the caller must
+   * not use <var>a</var> afterwards.  Used by {@link TableLib}.
+   * @param L  the state to count the growth against.
+   * @param a  the values, none of which may be <code>nil</code>.
+   * @param n  the number of values, <code>a.length</code>.
+   */
+  void putarray(Lua L, Object[] a, int n)
+  {
+    if (pending)
+    {
+      fill();
+    }
+    if (n <= sizeArray)
+    {
+      System.arraycopy(a, 0, array, 0, n);
+      return;
+    }
+    L.allocated(Heap.ELEMENT*(long)(n - sizeArray));
+    if (!isEmpty())
+    {
+      for (int i=sizeArray+1; i<=n; ++i)
+      {
+        remove(new Double(i));
+      }
+    }
+    array = a;
+    sizeArray = n;
+  }
+
+  /**
+   * Adds the table's keys, values and metatable to <var>h</var> and
+   * returns the table's own size.  A table still to be filled in
+   * shares its contents with a template or library, and counts as
+   * empty.  Used by {@link Heap#measure}.
+   */
+  int mark(Heap h)
+  {
+    if (pending)
+    {
+      return Heap.TABLE;
+    }
+    for (int i=0; i<sizeArray; ++i)
+    {
+      h.add(array[i]);
+    }
+    Iterator it = super.entrySet().iterator();
+    while (it.hasNext())
+    {
+      java.util.Map.Entry e = (java.util.Map.Entry)it.next();
+      h.add(e.getKey());
+      h.add(e.getValue());
+    }
+    h.add(metatable);
+    return Heap.TABLE + Heap.ELEMENT*sizeArray + Heap.ENTRY*size();
   }
 
   /**
@@ -564,7 +877,11 @@ public final class LuaTable extends java.util.HashMap
 
   public Enumeration keys()
   {
-    return new Enum(this, (Iterator)super.values());
+    if (pending)
+    {
+      fill();
+    }
+    return new Enum(this, super.keySet().iterator());
   }
 
   /**
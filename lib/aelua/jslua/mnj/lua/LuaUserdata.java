@@ -41,6 +41,8 @@ public final class LuaUserdata
   private Object userdata;
   private LuaTable metatable;
   private LuaTable env;
+  /** Whether the state has it in its list of userdata to finalise. */
+  boolean fnz;  // = false;
   /**
    * Wraps an arbitrary Java reference.  To retrieve the reference that
    * was wrapped, use {@link Lua#toUserdata}.
@@ -138,36 +138,32 @@ public final class MathLib extends LuaJavaCallback
    */
   public static void open(Lua L)
   {
-    LuaTable t = L.register("math");
-
-    r(L, "abs", ABS);
-    r(L, "ceil", CEIL);
-    r(L, "cos", COS);
-    r(L, "deg", DEG);
-    r(L, "exp", EXP);
-    r(L, "floor", FLOOR);
-    r(L, "fmod", FMOD);
-    r(L, "max", MAX);
-    r(L, "min", MIN);
-    r(L, "modf", MODF);
-    r(L, "pow", POW);
-    r(L, "rad", RAD);
-    r(L, "random", RANDOM);
-    r(L, "randomseed", RANDOMSEED);
-    r(L, "sin", SIN);
-    r(L, "sqrt", SQRT);
-    r(L, "tan", TAN);
-
-    L.setField(t, "pi", L.valueOfNumber(Math.PI));
-    L.setField(t, "huge", L.valueOfNumber(Double.POSITIVE_INFINITY));
+    L.register("math").lazy(LIB);
   }
 
-  /** Register a function. */
-  private static void r(Lua L, String name, int which)
+  /** Names and values of the library's fields, see {@link LuaTable#lazy}. */
+  private static final Object[] LIB =
   {
-    MathLib f = new MathLib(which);
-    L.setField(L.getGlobal("math"), name, f);
-  }
+    "abs", new MathLib(ABS),
+    "ceil", new MathLib(CEIL),
+    "cos", new MathLib(COS),
+    "deg", new MathLib(DEG),
+    "exp", new MathLib(EXP),
+    "floor", new MathLib(FLOOR),
+    "fmod", new MathLib(FMOD),
+    "max", new MathLib(MAX),
+    "min", new MathLib(MIN),
+    "modf", new MathLib(MODF),
+    "pow", new MathLib(POW),
+    "rad", new MathLib(RAD),
+    "random", new MathLib(RANDOM),
+    "randomseed", new MathLib(RANDOMSEED),
+    "sin", new MathLib(SIN),
+    "sqrt", new MathLib(SQRT),
+    "tan", new MathLib(TAN),
+    "pi", Lua.valueOfNumber(Math.PI),
+    "huge", Lua.valueOfNumber(Double.POSITIVE_INFINITY),
+  };
 
   private static int abs(Lua L)
   {
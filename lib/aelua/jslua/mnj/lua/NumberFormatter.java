@@ -0,0 +1,460 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+/**
+ * Converts numbers to strings exactly as PUC-Rio's
+ * <code>lua_number2str</code> does, that is like C's
+ * <code>sprintf("%.14g")</code>.  Used by {@link Lua#toString} and so
+ * by <code>tostring</code>, <code>..</code> and <code>print</code>.
+ * <p>
+ * Integers with at most 14 digits, the usual case, are formatted as
+ * longs.  Other numbers start from the digits of
+ * <code>Double.toString</code>, which are the shortest that identify
+ * the double, and round them to 14 significant digits.  That gives the
+ * correct rounding except when those digits stop exactly half way
+ * between two 14 digit numbers; then the double is compared with the
+ * half way point using exact integer arithmetic.  Denormalised
+ * numbers have too few bits for their shortest digits to be used, so
+ * their digits are computed exactly.
+ * </p>
+ * <p>
+ * NaN is formatted as "nan" (C gives "nan" or "-nan" depending on the
+ * platform and the sign of the NaN, which Java cannot see).
+ * </p>
+ */
+final class NumberFormatter
+{
+  /** Number of significant digits, as in "%.14g". */
+  private static final int DIGITS = 14;
+
+  /** Integers smaller than this in magnitude have at most 14 digits. */
+  private static final double INTLIMIT = 1e14;
+
+  /** Smallest normalised double, Java 6's Double.MIN_NORMAL. */
+  private static final double MIN_NORMAL = 2.2250738585072014e-308;
+
+  /** Size of {@link #cache}, a power of 2. */
+  private static final int CACHESIZE = 256;
+
+  /**
+   * Recently converted non-integers.  Each entry is immutable, so the
+   * cache can be shared between threads without locking.
+   */
+  private static final Cached[] cache = new Cached[CACHESIZE];
+
+  private NumberFormatter()
+  {
+  }
+
+  /** Formats <var>d</var> like "%.14g". */
+  static String format(double d)
+  {
+    if (d == (long)d && d > -INTLIMIT && d < INTLIMIT)
+    {
+      if (d == 0 && 1/d < 0)
+      {
+        return "-0";
+      }
+      return Long.toString((long)d);
+    }
+    if (d != d)
+    {
+      return "nan";
+    }
+    if (Double.isInfinite(d))
+    {
+      return d > 0 ? "inf" : "-inf";
+    }
+    int h = (int)(d * 1000003.0) ^ (int)d;
+    h = (h ^ (h >>> 8)) & (CACHESIZE-1);
+    Cached c = cache[h];
+    if (c != null && c.d == d)
+    {
+      return c.s;
+    }
+    String s = convert(d);
+    cache[h] = new Cached(d, s);
+    return s;
+  }
+
+  /** Formats a finite non-integer, or a large integer. */
+  private static String convert(double d)
+  {
+    // Digits, without sign, point and leading zeroes.  The value is
+    // 0.DIGITS * 10**e.
+    char[] a;
+    int len = 0;
+    int e = 0;
+    if (Math.abs(d) < MIN_NORMAL)
+    {
+      a = new char[18];
+      len = 18;
+      e = denormal(Math.abs(d), a);
+    }
+    else
+    {
+      String r = Double.toString(d);
+      int n = r.length();
+      a = new char[n];
+      boolean point = false;
+      for (int i = d < 0 ? 1 : 0; i<n; ++i)
+      {
+        char c = r.charAt(i);
+        if (c == '.')
+        {
+          point = true;
+        }
+        else if (c == 'e' || c == 'E')
+        {
+          int j = i + 1;
+          if (r.charAt(j) == '+')
+          {
+            ++j;
+          }
+          e += Integer.parseInt(r.substring(j));
+          break;
+        }
+        else if (c == '0' && len == 0)
+        {
+          if (point)
+          {
+            --e;
+          }
+        }
+        else
+        {
+          a[len++] = c;
+          if (!point)
+          {
+            ++e;
+          }
+        }
+      }
+    }
+    while (len > 1 && a[len-1] == '0')
+    {
+      --len;
+    }
+
+    if (len > DIGITS)
+    {
+      boolean up;
+      if (a[DIGITS] != '5' || len > DIGITS+1)
+      {
+        up = a[DIGITS] >= '5';
+      }
+      else
+      {
+        // Exactly half way according to the short digits.
+        long m = 0;
+        for (int k=0; k<=DIGITS; ++k)
+        {
+          m = m*10 + (a[k] - '0');
+        }
+        int s = compare(Math.abs(d), m, e - DIGITS - 1);
+        up = s > 0 || (s == 0 && (a[DIGITS-1] - '0') % 2 == 1);
+      }
+      len = DIGITS;
+      if (up)
+      {
+        int k = len - 1;
+        while (k >= 0 && a[k] == '9')
+        {
+          --k;
+        }
+        if (k < 0)
+        {
+          a[0] = '1';
+          len = 1;
+          ++e;
+        }
+        else
+        {
+          ++a[k];
+          len = k + 1;
+        }
+      }
+      while (len > 1 && a[len-1] == '0')
+      {
+        --len;
+      }
+    }
+
+    StringBuffer b = new StringBuffer(DIGITS + 8);
+    if (d < 0)
+    {
+      b.append('-');
+    }
+    int x = e - 1;      // exponent in d.ddd form
+    if (x < -4 || x >= DIGITS)
+    {
+      b.append(a[0]);
+      if (len > 1)
+      {
+        b.append('.');
+        b.append(a, 1, len-1);
+      }
+      b.append('e');
+      if (x < 0)
+      {
+        b.append('-');
+        x = -x;
+      }
+      else
+      {
+        b.append('+');
+      }
+      if (x < 10)
+      {
+        b.append('0');
+      }
+      b.append(x);
+    }
+    else if (e <= 0)
+    {
+      b.append("0.");
+      for (int k=e; k<0; ++k)
+      {
+        b.append('0');
+      }
+      b.append(a, 0, len);
+    }
+    else
+    {
+      if (len <= e)
+      {
+        b.append(a, 0, len);
+        for (int k=len; k<e; ++k)
+        {
+          b.append('0');
+        }
+      }
+      else
+      {
+        b.append(a, 0, e);
+        b.append('.');
+        b.append(a, e, len-e);
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * Finds the exact digits of a denormalised number.  Stores 17
+   * digits in <var>a</var> followed by 1 if there are more non-zero
+   * digits and 0 otherwise.
+   * @param v  a positive denormalised double.
+   * @return the exponent, the value being 0.DIGITS * 10**exponent.
+   */
+  private static int denormal(double v, char[] a)
+  {
+    // v = f*2**p with f an integer.
+    int p = 0;
+    while (v != Math.floor(v))
+    {
+      v *= 2;
+      --p;
+    }
+    int[] f = big((long)v);
+    // Find k such that q = floor(v*10**k) has 17 digits.
+    int k = 16 - (int)Math.floor((Math.log(v) + p*Math.log(2)) / Math.log(10));
+    long q;
+    int s;
+    int[] x;
+    while (true)
+    {
+      // v*10**k = f*5**k*2**(p+k), and p+k < 0.
+      s = -(p + k);
+      x = mul5(f, k);
+      q = bits(x, s);
+      if (q >= 100000000000000000L)
+      {
+        --k;
+      }
+      else if (q < 10000000000000000L)
+      {
+        ++k;
+      }
+      else
+      {
+        break;
+      }
+    }
+    for (int i=16; i>=0; --i)
+    {
+      a[i] = (char)('0' + q % 10);
+      q /= 10;
+    }
+    a[17] = below(x, s) ? '1' : '0';
+    return 17 - k;
+  }
+
+  /**
+   * Compares <var>v</var> with <var>m</var>*10**<var>k</var> exactly.
+   * @param v  a positive finite double.
+   * @param m  a positive integer.
+   * @param k  the power of ten.
+   * @return negative, zero or positive as <var>v</var> is less than,
+   * equal to, or greater than <var>m</var>*10**<var>k</var>.
+   */
+  private static int compare(double v, long m, int k)
+  {
+    // v = f*2**p with f an integer.
+    int p = 0;
+    while (v >= 9007199254740992.0)     // 2**53
+    {
+      v /= 2;
+      ++p;
+    }
+    while (v != Math.floor(v))
+    {
+      v *= 2;
+      --p;
+    }
+    int[] x = big((long)v);
+    int[] y = big(m);
+    // Compare x*2**p with y*2**k*5**k.
+    if (k < 0)
+    {
+      x = mul5(x, -k);
+    }
+    else
+    {
+      y = mul5(y, k);
+    }
+    int s = Math.min(p, k);
+    x = shl(x, p - s);
+    y = shl(y, k - s);
+    return cmp(x, y);
+  }
+
+  // Natural numbers as int arrays of 32-bit words, least significant
+  // first.
+
+  private static int[] big(long v)
+  {
+    return new int[] { (int)v, (int)(v >>> 32) };
+  }
+
+  /** Returns <var>x</var>*5**<var>n</var>. */
+  private static int[] mul5(int[] x, int n)
+  {
+    while (n > 0)
+    {
+      int k = Math.min(n, 13);  // 5**13 < 2**31
+      long f = 1;
+      for (int i=0; i<k; ++i)
+      {
+        f *= 5;
+      }
+      int[] r = new int[x.length + 1];
+      long carry = 0;
+      for (int i=0; i<x.length; ++i)
+      {
+        long t = (x[i] & 0xffffffffL) * f + carry;
+        r[i] = (int)t;
+        carry = t >>> 32;
+      }
+      r[x.length] = (int)carry;
+      x = r;
+      n -= k;
+    }
+    return x;
+  }
+
+  /** Returns <var>x</var>*2**<var>n</var>. */
+  private static int[] shl(int[] x, int n)
+  {
+    int w = n >>> 5;
+    int b = n & 31;
+    int[] r = new int[x.length + w + 1];
+    for (int i=0; i<x.length; ++i)
+    {
+      long t = (x[i] & 0xffffffffL) << b;
+      r[i+w] |= (int)t;
+      r[i+w+1] = (int)(t >>> 32);
+    }
+    return r;
+  }
+
+  /** Returns the 63 bits of <var>x</var> from bit <var>s</var>. */
+  private static long bits(int[] x, int s)
+  {
+    long r = 0;
+    for (int i=s+62; i>=s; --i)
+    {
+      r = (r << 1) | bit(x, i);
+    }
+    return r;
+  }
+
+  /** Whether any of the bits of <var>x</var> below <var>s</var> is set. */
+  private static boolean below(int[] x, int s)
+  {
+    for (int i=0; i<s; ++i)
+    {
+      if (bit(x, i) != 0)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int bit(int[] x, int i)
+  {
+    int w = i >>> 5;
+    if (w >= x.length)
+    {
+      return 0;
+    }
+    return (x[w] >>> (i & 31)) & 1;
+  }
+
+  private static int cmp(int[] x, int[] y)
+  {
+    for (int i=Math.max(x.length, y.length)-1; i>=0; --i)
+    {
+      long a = i < x.length ? x[i] & 0xffffffffL : 0;
+      long b = i < y.length ? y[i] & 0xffffffffL : 0;
+      if (a != b)
+      {
+        return a < b ? -1 : 1;
+      }
+    }
+    return 0;
+  }
+}
+
+/** An entry in {@link NumberFormatter}'s cache. */
+final class Cached
+{
+  final double d;
+  final String s;
+
+  Cached(double d, String s)
+  {
+    this.d = d;
+    this.s = s;
+  }
+}
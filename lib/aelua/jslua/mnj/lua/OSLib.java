@@ -95,22 +95,18 @@ public final class OSLib extends LuaJavaCallback
    */
   public static void open(Lua L)
   {
-    L.register("os");
-
-    r(L, "clock", CLOCK);
-    r(L, "date", DATE);
-    r(L, "difftime", DIFFTIME);
-    r(L, "setlocale", SETLOCALE);
-    r(L, "time", TIME);
+    L.register("os").lazy(LIB);
   }
 
-  /** Register a function. */
-  private static void r(Lua L, String name, int which)
+  /** Names and values of the library's fields, see {@link LuaTable#lazy}. */
+  private static final Object[] LIB =
   {
-    OSLib f = new OSLib(which);
-    Object lib = L.getGlobal("os");
-    L.setField(lib, name, f);
-  }
+    "clock", new OSLib(CLOCK),
+    "date", new OSLib(DATE),
+    "difftime", new OSLib(DIFFTIME),
+    "setlocale", new OSLib(SETLOCALE),
+    "time", new OSLib(TIME),
+  };
 
   private static final long T0 = System.currentTimeMillis();
 
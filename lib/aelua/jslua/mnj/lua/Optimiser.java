@@ -0,0 +1,335 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+/**
+ * Optional peephole optimiser run over each finished {@link Proto} by
+ * {@link FuncState#close}.  It performs:
+ * <ul>
+ * <li>jump threading: a jump to an unconditional jump is retargeted
+ * to the final destination;</li>
+ * <li>dead code removal: instructions that cannot be reached from
+ * the function entry (code after a <code>RETURN</code> or an
+ * unconditional jump, for example) are deleted;</li>
+ * <li>removal of jumps to the next instruction;</li>
+ * <li>redundant <code>MOVE</code> elimination (<code>MOVE A A</code>,
+ * and <code>MOVE B A</code> immediately after <code>MOVE A
+ * B</code>);</li>
+ * <li>coalescing of adjacent <code>LOADNIL</code> instructions.</li>
+ * </ul>
+ * Jump offsets, <var>lineinfo</var>, and the pc ranges of
+ * <var>locvars</var> are remapped whenever instructions are deleted.
+ * An instruction that may be skipped by its predecessor
+ * (<code>LOADBOOL</code> with C set, the tests, <code>TFORLOOP</code>)
+ * and the operand words following <code>SETLIST</code> and
+ * <code>CLOSURE</code> are never deleted.  The final instruction is
+ * kept so that the code still ends in a <code>RETURN</code>, as
+ * PUC-Rio's code checker requires.
+ */
+final class Optimiser
+{
+  /** Longest chain of jumps followed when threading. */
+  private static final int MAXHOPS = 100;
+
+  private Optimiser()
+  {
+  }
+
+  /** Optimises the code of <var>f</var> (but not its inner protos). */
+  static void optimise(Proto f)
+  {
+    // Each pass only ever deletes instructions, so this terminates.
+    while (pass(f))
+      ;
+  }
+
+  /**
+   * One pass of the optimiser.
+   * @return true if any instruction was deleted.
+   */
+  private static boolean pass(Proto f)
+  {
+    int n = f.sizecode;
+    int[] code = f.code;
+    if (n == 0)
+    {
+      return false;
+    }
+
+    // Classify each word of code.
+    boolean[] data = new boolean[n];    // an operand, not an instruction
+    boolean[] skipped = new boolean[n]; // may be skipped by its predecessor
+    for (int pc=0; pc<n; ++pc)
+    {
+      if (data[pc])
+      {
+        continue;
+      }
+      int i = code[pc];
+      switch (Lua.OPCODE(i))
+      {
+        case Lua.OP_SETLIST:
+          if (Lua.ARGC(i) == 0 && pc+1 < n)
+          {
+            data[pc+1] = true;
+          }
+          break;
+        case Lua.OP_CLOSURE:
+          int nup = f.p[Lua.ARGBx(i)].nups;
+          for (int j=1; j<=nup && pc+j < n; ++j)
+          {
+            data[pc+j] = true;
+          }
+          break;
+        case Lua.OP_LOADBOOL:
+          if (Lua.ARGC(i) != 0 && pc+1 < n)
+          {
+            skipped[pc+1] = true;
+          }
+          break;
+        case Lua.OP_EQ:
+        case Lua.OP_LT:
+        case Lua.OP_LE:
+        case Lua.OP_TEST:
+        case Lua.OP_TESTSET:
+        case Lua.OP_TFORLOOP:
+          if (pc+1 < n)
+          {
+            skipped[pc+1] = true;
+          }
+          break;
+      }
+    }
+
+    // Jump threading.
+    for (int pc=0; pc<n; ++pc)
+    {
+      if (data[pc] || Lua.OPCODE(code[pc]) != Lua.OP_JMP)
+      {
+        continue;
+      }
+      int t = pc + 1 + Lua.ARGsBx(code[pc]);
+      for (int hops=0; hops < MAXHOPS && t != pc && t < n && !data[t] &&
+          Lua.OPCODE(code[t]) == Lua.OP_JMP; ++hops)
+      {
+        t = t + 1 + Lua.ARGsBx(code[t]);
+      }
+      code[pc] = Lua.SETARG_sBx(code[pc], t - (pc+1));
+    }
+
+    // Reachability.  target records the instructions that are reached
+    // other than by falling through from the previous instruction.
+    boolean[] live = new boolean[n];
+    boolean[] target = new boolean[n+2];
+    int[] work = new int[n];
+    int top = 0;
+    live[0] = true;
+    work[top++] = 0;
+    while (top > 0)
+    {
+      int pc = work[--top];
+      int i = code[pc];
+      int next = pc + 1;
+      int other = -1;
+      switch (Lua.OPCODE(i))
+      {
+        case Lua.OP_RETURN:
+          next = -1;
+          break;
+        case Lua.OP_JMP:
+        case Lua.OP_FORPREP:
+          next = pc + 1 + Lua.ARGsBx(i);
+          target[next] = true;
+          break;
+        case Lua.OP_FORLOOP:
+          other = pc + 1 + Lua.ARGsBx(i);
+          target[other] = true;
+          break;
+        case Lua.OP_LOADBOOL:
+          if (Lua.ARGC(i) != 0)
+          {
+            // The skipped instruction is kept, conservatively.
+            other = pc + 2;
+            target[other] = true;
+          }
+          break;
+        case Lua.OP_EQ:
+        case Lua.OP_LT:
+        case Lua.OP_LE:
+        case Lua.OP_TEST:
+        case Lua.OP_TESTSET:
+        case Lua.OP_TFORLOOP:
+          other = pc + 2;
+          target[other] = true;
+          break;
+        case Lua.OP_SETLIST:
+          if (Lua.ARGC(i) == 0)
+          {
+            live[pc+1] = true;
+            next = pc + 2;
+          }
+          break;
+        case Lua.OP_CLOSURE:
+          int nup = f.p[Lua.ARGBx(i)].nups;
+          for (int j=1; j<=nup; ++j)
+          {
+            live[pc+j] = true;
+          }
+          next = pc + 1 + nup;
+          break;
+      }
+      if (next >= 0 && next < n && !live[next])
+      {
+        live[next] = true;
+        work[top++] = next;
+      }
+      if (other >= 0 && other < n && !live[other])
+      {
+        live[other] = true;
+        work[top++] = other;
+      }
+    }
+
+    // Mark deletions.
+    boolean[] delete = new boolean[n];
+    boolean changed = false;
+    for (int pc=0; pc<n-1; ++pc)
+    {
+      if (!live[pc])
+      {
+        delete[pc] = true;
+        changed = true;
+        continue;
+      }
+      if (data[pc] || skipped[pc] || delete[pc])
+      {
+        continue;
+      }
+      int i = code[pc];
+      int a = Lua.ARGA(i);
+      int b = Lua.ARGB(i);
+      switch (Lua.OPCODE(i))
+      {
+        case Lua.OP_JMP:
+          if (Lua.ARGsBx(i) == 0)
+          {
+            delete[pc] = true;
+            changed = true;
+          }
+          break;
+        case Lua.OP_MOVE:
+          if (a == b)
+          {
+            delete[pc] = true;
+            changed = true;
+          }
+          else if (removable(code, pc+1, n-1, data, skipped, target, live) &&
+              code[pc+1] == Lua.CREATE_ABC(Lua.OP_MOVE, b, a, 0))
+          {
+            delete[pc+1] = true;
+            changed = true;
+          }
+          break;
+        case Lua.OP_LOADNIL:
+          int q = pc + 1;
+          while (removable(code, q, n-1, data, skipped, target, live) &&
+              Lua.OPCODE(code[q]) == Lua.OP_LOADNIL &&
+              Lua.ARGA(code[q]) >= a && Lua.ARGA(code[q]) <= b+1)
+          {
+            b = Math.max(b, Lua.ARGB(code[q]));
+            code[pc] = Lua.SETARG_B(code[pc], b);
+            delete[q++] = true;
+            changed = true;
+          }
+          break;
+      }
+    }
+    if (!changed)
+    {
+      return false;
+    }
+
+    // Rebuild.  map[pc] is the new index of the first kept instruction
+    // at or after pc.
+    int[] map = new int[n+1];
+    int m = 0;
+    for (int pc=0; pc<n; ++pc)
+    {
+      map[pc] = m;
+      if (!delete[pc])
+      {
+        ++m;
+      }
+    }
+    map[n] = m;
+    int[] newcode = new int[m];
+    boolean hasLines = f.sizelineinfo == n;
+    int[] newline = hasLines ? new int[m] : f.lineinfo;
+    for (int pc=0; pc<n; ++pc)
+    {
+      if (delete[pc])
+      {
+        continue;
+      }
+      int i = code[pc];
+      if (!data[pc])
+      {
+        switch (Lua.OPCODE(i))
+        {
+          case Lua.OP_JMP:
+          case Lua.OP_FORPREP:
+          case Lua.OP_FORLOOP:
+            int t = pc + 1 + Lua.ARGsBx(i);
+            i = Lua.SETARG_sBx(i, map[t] - (map[pc] + 1));
+            break;
+        }
+      }
+      newcode[map[pc]] = i;
+      if (hasLines)
+      {
+        newline[map[pc]] = f.lineinfo[pc];
+      }
+    }
+    f.code = newcode;
+    f.sizecode = m;
+    f.lineinfo = newline;
+    f.sizelineinfo = newline.length;
+    for (int j=0; j<f.sizelocvars; ++j)
+    {
+      LocVar v = f.locvars[j];
+      v.startpc = map[Math.min(v.startpc, n)];
+      v.endpc = map[Math.min(v.endpc, n)];
+    }
+    return true;
+  }
+
+  /**
+   * True if the instruction at <var>pc</var> may be deleted in favour
+   * of its predecessor: it is only ever reached by falling through.
+   */
+  private static boolean removable(int[] code, int pc, int limit,
+      boolean[] data, boolean[] skipped, boolean[] target, boolean[] live)
+  {
+    return pc < limit && live[pc] && !data[pc] && !skipped[pc] &&
+        !target[pc];
+  }
+}
@@ -0,0 +1,45 @@
+/*  $Header$
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject
+ * to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR
+ * ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF
+ * CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package mnj.lua;
+
+/**
+ * Receives the output of a Lua state, in particular that of
+ * <code>print</code>.  Set with {@link Lua#setOutput}; by default a
+ * state uses a {@link BufferedSink} writing to
+ * <code>System.out</code>.
+ */
+public interface OutputSink
+{
+  /**
+   * Writes some text.  <code>print</code> calls this once per line,
+   * including the line's newline.
+   * @param s  the text.
+   */
+  public void write(String s);
+
+  /**
+   * Makes sure that everything written so far has been passed on.
+   * Called when the host's outermost call into the state returns, and
+   * by {@link Lua#close}.
+   */
+  public void flush();
+}
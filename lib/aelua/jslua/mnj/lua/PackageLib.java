@@ -72,6 +72,15 @@ public final class PackageLib extends LuaJavaCallback
     this.me = me;
   }
 
+  protected LuaJavaCallback fork(Fork f)
+  {
+    if (me == null)
+    {
+      return this;
+    }
+    return new PackageLib(which, f.table(me));
+  }
+
   /**
    * Implements all of the functions in the Lua package library.  Do not
    * call directly.
@@ -57,6 +57,13 @@ final class Proto
   /** Array of Proto objects. */
   Proto[] p;
   int sizep;
+  /**
+   * For a Proto loaded lazily, the loader of its chunk and the offsets
+   * of the inner protos that are still null in <code>p</code>.  See
+   * {@link #proto(int)}.
+   */
+  private Loader loader;
+  private int[] poff;
   /**
    * Number of upvalues used by this prototype (and so by all the
    * functions created from this Proto).
@@ -77,11 +84,36 @@ final class Proto
   boolean isVararg;
   int maxstacksize;
   // Debug info
-  /** Map from PC to line number. */
+  /**
+   * Map from PC to line number.  Only used while the Proto is being
+   * compiled or loaded; {@link #close} packs it into
+   * <code>lines</code>.
+   */
   int[] lineinfo;
+  /** Number of instructions that have line info. */
   int sizelineinfo;
+  /**
+   * Packed line info, see {@link #packLines}.  Runs of instructions
+   * on the same line, each as a varint count followed by a zigzag
+   * varint line delta.
+   */
+  private byte[] lines;
+  /**
+   * Every {@link #LINEMARK}th run of <code>lines</code>, as triples of
+   * its first pc, its offset in <code>lines</code>, and the line
+   * before it.  Lets {@link #getline} skip most of the runs.
+   */
+  private int[] linemark;
+  /**
+   * Local variables while compiling; {@link #close} packs them into
+   * <code>locname</code> and <code>locpc</code>.
+   */
   LocVar[] locvars;
   int sizelocvars ;
+  /** Names of the local variables. */
+  private String[] locname;
+  /** Start and end pc of each local variable, in pairs. */
+  private int[] locpc;
   String[] upvalues;
   int sizeupvalues;
   String source;
@@ -150,14 +182,42 @@ final class Proto
   /**
    * Augment with debug info.  All the arguments are referenced by the
    * instance after the method has returned, so try not to share them.
+   * @param lineinfoArg  line of each instruction, packed and dropped.
+   * @param locnameArg   name of each local variable.
+   * @param locpcArg     start and end pc of each local variable, in
+   *                     pairs.
+   * @param upvaluesArg  name of each upvalue.
    */
   void debug(int[] lineinfoArg,
-      LocVar[] locvarsArg,
+      String[] locnameArg,
+      int[] locpcArg,
       String[] upvaluesArg)
   {
     this.lineinfo = lineinfoArg;  sizelineinfo = lineinfo.length;
-    this.locvars = locvarsArg;    sizelocvars = locvars.length;
+    this.locname = locnameArg;    sizelocvars = locname.length;
+    this.locpc = locpcArg;
     this.upvalues = upvaluesArg;  sizeupvalues = upvalues.length;
+    this.locvars = null;
+    packLines();
+  }
+
+  /**
+   * Drops local variable and upvalue names.  Line info is kept, so
+   * error messages still have line numbers.
+   */
+  void strip()
+  {
+    locname = ZERO_STRING_ARRAY;  locpc = ZERO_INT_ARRAY;
+    sizelocvars = 0;
+    upvalues = ZERO_STRING_ARRAY; sizeupvalues = 0;
+    for (int i=0; i<sizep; ++i)
+    {
+      // Inner protos not yet decoded are stripped by their loader.
+      if (p[i] != null)
+      {
+        p[i].strip();
+      }
+    }
   }
 
   /** Gets source. */
@@ -221,9 +281,9 @@ final class Proto
   }
 
   /** Append instruction. */
-  void codeAppend(Lua L, int pc, int instruction, int line)
+  void codeAppend(int pc, int instruction, int line)
   {
-    ensureCode(L, pc);
+    ensureCode(pc);
     code[pc] = instruction;
 
     if (pc >= lineinfo.length)
@@ -235,7 +295,7 @@ final class Proto
     lineinfo[pc] = line;
   }
 
-  void ensureLocvars(Lua L, int atleast, int limit)
+  void ensureLocvars(int atleast, int limit)
   {
     if (atleast + 1 > sizelocvars)
     {
@@ -243,7 +303,7 @@ final class Proto
       if (newsize > limit)
         newsize = limit ;
       if (atleast + 1 > newsize)
-        L.gRunerror("too many local variables") ;
+        throw new SyntaxError(Lua.ERRRUN, "too many local variables") ;
       LocVar [] newlocvars = new LocVar [newsize] ;
       System.arraycopy(locvars, 0, newlocvars, 0, sizelocvars) ;
       for (int i = sizelocvars ; i < newsize ; i++)
@@ -253,7 +313,7 @@ final class Proto
     }
   }
 
-  void ensureProtos(Lua L, int atleast)
+  void ensureProtos(int atleast)
   {
     if (atleast + 1 > sizep)
     {
@@ -261,7 +321,7 @@ final class Proto
       if (newsize > Lua.MAXARG_Bx)
         newsize = Lua.MAXARG_Bx ;
       if (atleast + 1 > newsize)
-        L.gRunerror("constant table overflow") ;
+        throw new SyntaxError(Lua.ERRRUN, "constant table overflow") ;
       Proto [] newprotos = new Proto [newsize] ;
       System.arraycopy(p, 0, newprotos, 0, sizep) ;
       p = newprotos ;
@@ -269,13 +329,13 @@ final class Proto
     }
   }
 
-  void ensureUpvals(Lua L, int atleast)
+  void ensureUpvals(int atleast)
   {
     if (atleast + 1 > sizeupvalues)
     {
       int newsize = atleast*2+1 ;
       if (atleast + 1 > newsize)
-        L.gRunerror("upvalues overflow") ;
+        throw new SyntaxError(Lua.ERRRUN, "upvalues overflow") ;
       String [] newupvalues = new String [newsize] ;
       System.arraycopy(upvalues, 0, newupvalues, 0, sizeupvalues) ;
       upvalues = newupvalues ;
@@ -283,13 +343,13 @@ final class Proto
     }
   }
 
-  void ensureCode(Lua L, int atleast)
+  void ensureCode(int atleast)
   {
     if (atleast + 1 > sizecode)
     {
       int newsize = atleast*2+1 ;
       if (atleast + 1 > newsize)
-        L.gRunerror("code overflow") ;
+        throw new SyntaxError(Lua.ERRRUN, "code overflow") ;
       int [] newcode = new int [newsize] ;
       System.arraycopy(code, 0, newcode, 0, sizecode) ;
       code = newcode ;
@@ -306,17 +366,203 @@ final class Proto
   /** Get linenumber corresponding to pc, or 0 if no info. */
   int getline(int pc)
   {
-    if (lineinfo.length == 0)
+    if (pc < 0 || pc >= sizelineinfo)
     {
       return 0;
     }
-    return lineinfo[pc];
+    if (lines == null)
+    {
+      return lineinfo[pc];
+    }
+    // Find the last mark at or before pc, then decode runs from there.
+    int lo = 0;
+    int hi = linemark.length / 3;
+    while (lo < hi)
+    {
+      int m = (lo + hi) >>> 1;
+      if (linemark[3*m] <= pc)
+      {
+        lo = m + 1;
+      }
+      else
+      {
+        hi = m;
+      }
+    }
+    int at = 0;
+    int off = 0;
+    int line = 0;
+    if (lo > 0)
+    {
+      at = linemark[3*lo-3];
+      off = linemark[3*lo-2];
+      line = linemark[3*lo-1];
+    }
+    byte[] b = lines;
+    while (true)
+    {
+      int n = 0;
+      int d = 0;
+      int c;
+      int shift = 0;
+      do
+      {
+        c = b[off++];
+        n |= (c & 0x7f) << shift;
+        shift += 7;
+      } while (c < 0);
+      shift = 0;
+      do
+      {
+        c = b[off++];
+        d |= (c & 0x7f) << shift;
+        shift += 7;
+      } while (c < 0);
+      line += (d >>> 1) ^ -(d & 1);
+      at += n;
+      if (pc < at)
+      {
+        return line;
+      }
+    }
+  }
+
+  /**
+   * Line info as an array with one entry per instruction (do not
+   * modify).  Decodes the packed form, so it is not cheap.
+   */
+  int[] lineinfo()
+  {
+    if (lines == null)
+    {
+      return lineinfo;
+    }
+    int[] a = new int[sizelineinfo];
+    byte[] b = lines;
+    int off = 0;
+    int line = 0;
+    int pc = 0;
+    while (pc < a.length)
+    {
+      int n = 0;
+      int d = 0;
+      int c;
+      int shift = 0;
+      do
+      {
+        c = b[off++];
+        n |= (c & 0x7f) << shift;
+        shift += 7;
+      } while (c < 0);
+      shift = 0;
+      do
+      {
+        c = b[off++];
+        d |= (c & 0x7f) << shift;
+        shift += 7;
+      } while (c < 0);
+      line += (d >>> 1) ^ -(d & 1);
+      while (n-- > 0)
+      {
+        a[pc++] = line;
+      }
+    }
+    return a;
+  }
+
+  /** Distance, in runs, between the marks in {@link #linemark}. */
+  private static final int LINEMARK = 16;
+
+  /**
+   * Packs <code>lineinfo</code> into <code>lines</code> and
+   * <code>linemark</code>, and drops it.  Consecutive instructions
+   * nearly always share a line, and neighbouring lines are close, so
+   * the packed form is usually a couple of bytes per source line
+   * instead of four bytes per instruction.
+   */
+  private void packLines()
+  {
+    int n = sizelineinfo;
+    byte[] b = new byte[n/2 + 16];
+    int len = 0;
+    int[] mark = new int[3*(n/LINEMARK + 1)];
+    int nmark = 0;
+    int runs = 0;
+    int prev = 0;
+    int pc = 0;
+    while (pc < n)
+    {
+      int line = lineinfo[pc];
+      int start = pc;
+      while (++pc < n && lineinfo[pc] == line)
+        ;
+      if (runs > 0 && runs % LINEMARK == 0)
+      {
+        mark[nmark++] = start;
+        mark[nmark++] = len;
+        mark[nmark++] = prev;
+      }
+      ++runs;
+      if (len + 10 > b.length)
+      {
+        byte[] newb = new byte[b.length*2];
+        System.arraycopy(b, 0, newb, 0, len);
+        b = newb;
+      }
+      len = varint(b, len, pc - start);
+      int d = line - prev;
+      len = varint(b, len, (d << 1) ^ (d >> 31));
+      prev = line;
+    }
+    lines = new byte[len];
+    System.arraycopy(b, 0, lines, 0, len);
+    linemark = trimInt(mark, nmark);
+    lineinfo = null;
+  }
+
+  /**
+   * Writes <var>v</var>, taken as unsigned, into <var>b</var> at
+   * <var>i</var>, seven bits per byte with the top bit set on all but
+   * the last byte.
+   * @return the offset after the last byte written.
+   */
+  private static int varint(byte[] b, int i, int v)
+  {
+    while ((v & ~0x7f) != 0)
+    {
+      b[i++] = (byte)((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    b[i++] = (byte)v;
+    return i;
   }
 
-  /** Array of inner protos (do not modify). */
-  Proto[] proto()
+  /**
+   * Inner proto.  If this proto was loaded by a lazy {@link
+   * Loader#undump(boolean, boolean)} then the inner proto is decoded on first
+   * use.  Always use this rather than <code>p</code> outside the
+   * compiler.
+   * @param i  index of the inner proto.
+   */
+  Proto proto(int i)
   {
-    return p;
+    Proto q = p[i];
+    if (q == null)
+    {
+      q = loader.function(poff[i], source);
+      p[i] = q;
+    }
+    return q;
+  }
+
+  /**
+   * Marks the inner protos as not yet decoded.  <var>off</var> gives
+   * their offsets in the chunk held by <var>loader</var>.
+   */
+  void lazy(Loader loader, int[] off)
+  {
+    this.loader = loader;
+    this.poff = off;
   }
 
   /** Constant array (do not modify). */
@@ -349,10 +595,43 @@ final class Proto
     isVararg = true;
   }
 
-  /** LocVar array (do not modify). */
-  LocVar[] locvars()
+  /** Name of local variable <var>i</var>. */
+  String locvarname(int i)
   {
-    return locvars;
+    return locname[i];
+  }
+
+  /** First pc at which local variable <var>i</var> is active. */
+  int locvarstart(int i)
+  {
+    return locpc[2*i];
+  }
+
+  /** First pc at which local variable <var>i</var> is dead. */
+  int locvarend(int i)
+  {
+    return locpc[2*i+1];
+  }
+
+  /**
+   * Finishes a compiled Proto: packs the debug info the same way
+   * {@link #debug} does for a loaded one.  The compiler must not touch
+   * <code>lineinfo</code> or <code>locvars</code> afterwards.
+   */
+  void close()
+  {
+    int n = sizelocvars;
+    locname = new String[n];
+    locpc = new int[2*n];
+    for (int i=0; i<n; ++i)
+    {
+      LocVar v = locvars[i];
+      locname[i] = v.varname;
+      locpc[2*i] = v.startpc;
+      locpc[2*i+1] = v.endpc;
+    }
+    locvars = null;
+    packLines();
   }
 
   // All the trim functions, below, check for the redundant case of
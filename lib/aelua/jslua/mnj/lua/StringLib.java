@@ -132,36 +132,33 @@ public final class StringLib extends LuaJavaCallback
    */
   public static void open(Lua L)
   {
-    Object lib = L.register("string");
-
-    r(L, "byte", BYTE);
-    r(L, "char", CHAR);
-    r(L, "dump", DUMP);
-    r(L, "find", FIND);
-    r(L, "format", FORMAT);
-    r(L, "gfind", GFIND);
-    r(L, "gmatch", GMATCH);
-    r(L, "gsub", GSUB);
-    r(L, "len", LEN);
-    r(L, "lower", LOWER);
-    r(L, "match", MATCH);
-    r(L, "rep", REP);
-    r(L, "reverse", REVERSE);
-    r(L, "sub", SUB);
-    r(L, "upper", UPPER);
+    LuaTable lib = L.register("string");
+    lib.lazy(LIB);
 
     LuaTable mt = new LuaTable();
     L.setMetatable("", mt);     // set string metatable
     L.setField(mt, "__index", lib);
   }
 
-  /** Register a function. */
-  private static void r(Lua L, String name, int which)
-  {
-    StringLib f = new StringLib(which);
-    Object lib = L.getGlobal("string");
-    L.setField(lib, name, f);
-  }
+  /** Names and values of the library's fields, see {@link LuaTable#lazy}. */
+  private static final Object[] LIB =
+  {
+    "byte", new StringLib(BYTE),
+    "char", new StringLib(CHAR),
+    "dump", new StringLib(DUMP),
+    "find", new StringLib(FIND),
+    "format", new StringLib(FORMAT),
+    "gfind", new StringLib(GFIND),
+    "gmatch", new StringLib(GMATCH),
+    "gsub", new StringLib(GSUB),
+    "len", new StringLib(LEN),
+    "lower", new StringLib(LOWER),
+    "match", new StringLib(MATCH),
+    "rep", new StringLib(REP),
+    "reverse", new StringLib(REVERSE),
+    "sub", new StringLib(SUB),
+    "upper", new StringLib(UPPER),
+  };
 
   /** Implements string.byte.  Name mangled to avoid keyword. */
   private static int byteFunction(Lua L)
@@ -489,7 +486,14 @@ public final class StringLib extends LuaJavaCallback
   {
     String s = L.checkString(1);
     int n = L.checkInt(2);
-    StringBuffer b = new StringBuffer();
+    long l = n > 0 ? (long)s.length()*n : 0;
+    if (l > Integer.MAX_VALUE/2)
+    {
+      return L.error("resulting string too large");
+    }
+    // Counted before it is built, so that the memory limit stops it.
+    L.allocated(Heap.STRING + 2*(int)l);
+    StringBuffer b = new StringBuffer((int)l);
     for (int i=0; i<n; ++i)
     {
       b.append(s);
@@ -78,16 +78,13 @@ final class StringReader extends java.io.Reader
     }
     if (current >= s.length())
     {
-      return 0;
+      return -1;
     }
     if (current + len > s.length())
     {
       len = s.length() - current;
     }
-    for (int i=0; i<len; ++i)
-    {
-      cbuf[off+i] = s.charAt(current+i);
-    }
+    s.getChars(current, current+len, cbuf, off);
     current += len;
     return len;
   }
@@ -26,7 +26,6 @@ package mnj.lua;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.HashMap;
 
 
 /**
@@ -86,13 +85,60 @@ final class Syntax
     "<number>", "<name>", "<string>", "<eof>"
   };
 
-  static HashMap reserved = new HashMap();
-  static
+  /**
+   * Equivalent to the reserved word test in llex.  Returns the token
+   * for the reserved word held in <code>b[off..off+len)</code>, or 0
+   * if it is not a reserved word.  Does not allocate.
+   */
+  private static int reserved(char[] b, int off, int len)
   {
-    for (int i=0; i < NUM_RESERVED; ++i)
+    if (len < 2 || len > 8)
     {
-      reserved.put(tokens[i], new Integer(FIRST_RESERVED+i));
+      return 0;
     }
+    switch (b[off])
+    {
+      case 'a': return reserved(b, off, len, TK_AND);
+      case 'b': return reserved(b, off, len, TK_BREAK);
+      case 'd': return reserved(b, off, len, TK_DO);
+      case 'e':
+        return reserved(b, off, len,
+            len == 3 ? TK_END : len == 4 ? TK_ELSE : TK_ELSEIF);
+      case 'f':
+        return reserved(b, off, len,
+            len == 3 ? TK_FOR : len == 5 ? TK_FALSE : TK_FUNCTION);
+      case 'i':
+        return reserved(b, off, len, b[off+1] == 'f' ? TK_IF : TK_IN);
+      case 'l': return reserved(b, off, len, TK_LOCAL);
+      case 'n':
+        return reserved(b, off, len, b[off+1] == 'i' ? TK_NIL : TK_NOT);
+      case 'o': return reserved(b, off, len, TK_OR);
+      case 'r':
+        return reserved(b, off, len,
+            len > 2 && b[off+2] == 'p' ? TK_REPEAT : TK_RETURN);
+      case 't':
+        return reserved(b, off, len, b[off+1] == 'h' ? TK_THEN : TK_TRUE);
+      case 'u': return reserved(b, off, len, TK_UNTIL);
+      case 'w': return reserved(b, off, len, TK_WHILE);
+    }
+    return 0;
+  }
+
+  private static int reserved(char[] b, int off, int len, int tok)
+  {
+    String w = tokens[tok-FIRST_RESERVED];
+    if (w.length() != len)
+    {
+      return 0;
+    }
+    for (int i=1; i<len; ++i)
+    {
+      if (b[off+i] != w.charAt(i))
+      {
+        return 0;
+      }
+    }
+    return tok;
   }
 
   // From struct LexState
@@ -128,23 +174,54 @@ final class Syntax
 
   /** FuncState for current (innermost) function being parsed. */
   FuncState fs;
-  Lua L;
+  /** Nesting depth of the parse, see {@link #enterlevel}. */
+  private int nCcalls;  // = 0
 
   /** input stream */
   private Reader z;
+  /** Characters read from <var>z</var> but not yet consumed. */
+  private char[] zbuf = new char[4096];
+  /** Index in <var>zbuf</var> of the character after <var>current</var>. */
+  private int zpos;     // = 0
+  /** Number of valid characters in <var>zbuf</var>. */
+  private int zlen;     // = 0
+  /**
+   * Start of the token being scanned directly out of <var>zbuf</var>,
+   * or -1.  Characters from here on survive a refill.
+   */
+  private int zmark = -1;
 
   /** Buffer for tokens. */
   StringBuffer buff = new StringBuffer();
+  /**
+   * Zero when <var>buff</var> holds the text of the last token,
+   * otherwise the text was scanned in place and this is
+   * <code>TK_NAME</code> or the string delimiter.  See
+   * {@link #txtToken}.
+   */
+  private int unsaved;  // = 0
+
+  /**
+   * Names seen in this compilation, an open addressed hash table so
+   * that each distinct identifier is only turned into a String once.
+   */
+  private String[] name = new String[64];
+  /** Hash codes of the entries in <var>name</var>. */
+  private int[] nameHash = new int[64];
+  /** Number of entries in <var>name</var>. */
+  private int nname;    // = 0
 
   /** current source name */
   String source;
 
+  /** Whether to run the {@link Optimiser} over each function. */
+  boolean optimise;
+
   /** locale decimal point. */
   private char decpoint = '.';
 
-  private Syntax(Lua L, Reader z, String source) throws IOException
+  private Syntax(Reader z, String source) throws IOException
   {
-    this.L = L;
     this.z = z;
     this.source = source;
     next();
@@ -164,8 +241,30 @@ final class Syntax
   // Unlike C's these version are not locale dependent, they use the
   // ISO-Latin-1 definitions from CLDC 1.1 Character class.
 
+  private static final byte ALPHA = 1;
+  private static final byte DIGIT = 2;
+
+  /** Character classes of the ASCII characters. */
+  private static final byte[] CTYPE = new byte[0x80];
+  static
+  {
+    for (int c='0'; c<='9'; ++c)
+    {
+      CTYPE[c] = DIGIT;
+    }
+    for (int c='a'; c<='z'; ++c)
+    {
+      CTYPE[c] = ALPHA;
+      CTYPE[c-'a'+'A'] = ALPHA;
+    }
+  }
+
   static boolean isalnum(int c)
   {
+    if (c >= 0 && c < 0x80)
+    {
+      return CTYPE[c] != 0;
+    }
     char ch = (char)c;
     return Character.isUpperCase(ch) ||
         Character.isLowerCase(ch) ||
@@ -174,6 +273,10 @@ final class Syntax
 
   static boolean isalpha(int c)
   {
+    if (c >= 0 && c < 0x80)
+    {
+      return CTYPE[c] == ALPHA;
+    }
     char ch = (char)c;
     return Character.isUpperCase(ch) ||
         Character.isLowerCase(ch);
@@ -189,6 +292,10 @@ final class Syntax
 
   static boolean isdigit(int c)
   {
+    if (c >= 0 && c < 0x80)
+    {
+      return CTYPE[c] == DIGIT;
+    }
     return Character.isDigit((char)c);
   }
 
@@ -325,6 +432,7 @@ loop:
   private int llex() throws IOException
   {
     buff.setLength(0);
+    unsaved = 0;
     while (true)
     {
       switch (current)
@@ -446,22 +554,23 @@ loop:
           }
           else if (isalpha(current) || current == '_')
           {
-            // identifier or reserved word
+            // identifier or reserved word, scanned in place
+            zmark = zpos - 1;
             do
             {
-              save_and_next();
+              next();
             } while (isalnum(current) || current == '_');
-            String s = buff.toString();
-            Object t = reserved.get(s);
-            if (t == null)
+            int start = zmark;
+            int len = (current == EOZ ? zlen : zpos - 1) - start;
+            zmark = -1;
+            int t = reserved(zbuf, start, len);
+            if (t == 0)
             {
-              semS = s;
+              semS = name(zbuf, start, len);
+              unsaved = TK_NAME;
               return TK_NAME;
             }
-            else
-            {
-              return ((Integer)t).intValue();
-            }
+            return t;
           }
           else
           {
@@ -475,7 +584,103 @@ loop:
 
   private void next() throws IOException
   {
-    current = z.read();
+    if (zpos < zlen || fill())
+    {
+      current = zbuf[zpos++];
+    }
+    else
+    {
+      current = EOZ;
+    }
+  }
+
+  /**
+   * Refills <var>zbuf</var> from <var>z</var>, keeping any characters
+   * from <var>zmark</var> onwards (and growing the buffer if a single
+   * token fills it).
+   * @return false at end of input.
+   */
+  private boolean fill() throws IOException
+  {
+    int keep = zmark < 0 ? zlen : zmark;
+    int n = zlen - keep;
+    char[] b = zbuf;
+    if (n == b.length)
+    {
+      b = new char[2*n];
+    }
+    System.arraycopy(zbuf, keep, b, 0, n);
+    zbuf = b;
+    if (zmark >= 0)
+    {
+      zmark = 0;
+    }
+    zlen = n;
+    zpos = n;
+    int r = z.read(b, n, b.length - n);
+    if (r <= 0)
+    {
+      return false;
+    }
+    zlen += r;
+    return true;
+  }
+
+  /**
+   * Returns the name held in <code>b[off..off+len)</code> as a String,
+   * the same String each time for the same name.
+   */
+  private String name(char[] b, int off, int len)
+  {
+    int h = 0;
+    for (int i=0; i<len; ++i)
+    {
+      h = 31*h + b[off+i];
+    }
+    int mask = name.length - 1;
+    int i = h & mask;
+    String s;
+    while ((s = name[i]) != null)
+    {
+      if (nameHash[i] == h && s.length() == len)
+      {
+        int j = 0;
+        while (j < len && s.charAt(j) == b[off+j])
+        {
+          ++j;
+        }
+        if (j == len)
+        {
+          return s;
+        }
+      }
+      i = (i+1) & mask;
+    }
+    s = new String(b, off, len);
+    name[i] = s;
+    nameHash[i] = h;
+    if (++nname*2 > name.length)
+    {
+      String[] oldName = name;
+      int[] oldHash = nameHash;
+      name = new String[2*oldName.length];
+      nameHash = new int[name.length];
+      mask = name.length - 1;
+      for (int k=0; k<oldName.length; ++k)
+      {
+        if (oldName[k] != null)
+        {
+          int j = oldHash[k] & mask;
+          while (name[j] != null)
+          {
+            j = (j+1) & mask;
+          }
+          name[j] = oldName[k];
+          nameHash[j] = oldHash[k];
+        }
+      }
+    }
+    return s;
   }
 
   /** Reads number.  Writes to semR. */
@@ -495,21 +700,37 @@ loop:
       save_and_next();
     }
     // :todo: consider doing PUC-Rio's decimal point tricks.
-    try
-    {
-      semR = Double.parseDouble(buff.toString());
-      return;
-    }
-    catch (NumberFormatException e)
+    double[] r = new double[1];
+    if (!Lua.oStr2d(buff.toString(), r))
     {
       xLexerror("malformed number", TK_NUMBER);
     }
+    semR = r[0];
   }
 
   /** Reads string.  Writes to semS. */
   private void read_string(int del) throws IOException
   {
-    save_and_next();
+    // Fast path: a string without escapes is scanned in place.
+    zmark = zpos - 1;
+    next();
+    while (current != del && current != '\\' && current != EOZ &&
+        !currIsNewline())
+    {
+      next();
+    }
+    if (current == del)
+    {
+      int start = zmark + 1;
+      zmark = -1;
+      semS = new String(zbuf, start, zpos - 1 - start);
+      unsaved = del;
+      next();
+      return;
+    }
+    int end = current == EOZ ? zlen : zpos - 1;
+    buff.append(zbuf, zmark, end - zmark);
+    zmark = -1;
     while (current != del)
     {
       switch (current)
@@ -601,6 +822,14 @@ loop:
       case TK_NAME:
       case TK_STRING:
       case TK_NUMBER:
+        if (unsaved == TK_NAME)
+        {
+          return semS;
+        }
+        else if (unsaved != 0)
+        {
+          return (char)unsaved + semS + (char)unsaved;
+        }
         return buff.toString();
       default:
         return xToken2str(tok);
@@ -615,8 +844,7 @@ loop:
     {
       msg = msg + " near '" + txtToken(tok) + "'";
     }
-    L.pushString(msg);
-    L.dThrow(Lua.ERRSYNTAX);
+    throw new SyntaxError(Lua.ERRSYNTAX, msg);
   }
 
   /** Equivalent to <code>luaX_next</code>. */
@@ -769,9 +997,13 @@ loop:
     codestring(e, str_checkname());
   }
 
+  /** Equivalent to enterlevel, using LUAI_MAXCCALLS of 200. */
   private void enterlevel()
   {
-    L.nCcalls++ ;
+    if (++nCcalls > 200)
+    {
+      xLexerror("chunk has too many syntax levels", 0);
+    }
   }
 
   private void error_expected(int tok)
@@ -781,15 +1013,23 @@ loop:
 
   private void leavelevel()
   {
-    L.nCcalls-- ;
+    nCcalls-- ;
   }
 
 
-  /** Equivalent to luaY_parser. */
-  static Proto parser(Lua L, Reader in, String name)
+  /**
+   * Equivalent to luaY_parser.  Compilation does not use a Lua state
+   * and shares no mutable static data, so separate compilations may
+   * proceed concurrently on hosts that have threads.
+   * @param optimise  whether to run the {@link Optimiser}.
+   * @throws SyntaxError if the chunk is not valid Lua.
+   * @throws IOException if <var>in</var> does.
+   */
+  static Proto parser(Reader in, String name, boolean optimise)
       throws IOException
   {
-    Syntax ls = new Syntax(L, in, name);
+    Syntax ls = new Syntax(in, name);
+    ls.optimise = optimise;
     FuncState fs = new FuncState(ls);
     ls.open_func(fs);
     fs.f.setIsVararg();
@@ -1643,7 +1883,7 @@ loop:
   private int registerlocalvar(String varname)
   {
     Proto f = fs.f;
-    f.ensureLocvars(L, fs.nlocvars, Short.MAX_VALUE) ;
+    f.ensureLocvars(fs.nlocvars, Short.MAX_VALUE) ;
     f.locvars[fs.nlocvars].varname = varname;
     return fs.nlocvars++;
   }
@@ -1688,7 +1928,7 @@ loop:
   private void pushclosure(FuncState func, Expdesc v)
   {
     Proto f = fs.f;
-    f.ensureProtos(L, fs.np) ;
+    f.ensureProtos(fs.np) ;
     Proto ff = func.f ;
     f.p[fs.np++] = ff;
     v.init(Expdesc.VRELOCABLE, fs.kCodeABx(Lua.OP_CLOSURE, 0, fs.np-1));
@@ -1769,7 +2009,6 @@ loop:
     Proto f = new Proto(source, 2);  /* registers 0/1 are always valid */
     funcstate.f = f;
     funcstate.ls = this;
-    funcstate.L = L;
 
     funcstate.prev = this.fs;   /* linked list of funcstates */
     this.fs = funcstate;
@@ -2029,7 +2268,7 @@ loop:
     }
     /* new one */
     yChecklimit(f.nups + 1, Lua.MAXUPVALUES, "upvalues");
-    f.ensureUpvals(L, f.nups) ;
+    f.ensureUpvals(f.nups) ;
     f.upvalues[f.nups] = name;
     //# assert v.k == Expdesc.VLOCAL || v.k == Expdesc.VUPVAL
     funcstate.upvalues[f.nups] = UPVAL_ENCODE(v.k, v.info) ;
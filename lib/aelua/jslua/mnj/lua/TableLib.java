@@ -41,6 +41,8 @@ public final class TableLib extends LuaJavaCallback
   private static final int MAXN = 3;
   private static final int REMOVE = 4;
   private static final int SORT = 5;
+  private static final int MOVE = 6;
+  private static final int CREATE = 7;
 
   /**
    * Which library function this object represents.  This value should
@@ -74,6 +76,10 @@ public final class TableLib extends LuaJavaCallback
         return remove(L);
       case SORT:
         return sort(L);
+      case MOVE:
+        return move(L);
+      case CREATE:
+        return create(L);
     }
     return 0;
   }
@@ -86,50 +92,129 @@ public final class TableLib extends LuaJavaCallback
    */
   public static void open(Lua L)
   {
-    L.register("table");
-
-    r(L, "concat", CONCAT);
-    r(L, "insert", INSERT);
-    r(L, "maxn", MAXN);
-    r(L, "remove", REMOVE);
-    r(L, "sort", SORT);
+    L.register("table").lazy(LIB);
   }
 
-  /** Register a function. */
-  private static void r(Lua L, String name, int which)
+  /** Names and values of the library's fields, see {@link LuaTable#lazy}. */
+  private static final Object[] LIB =
   {
-    TableLib f = new TableLib(which);
-    Object lib = L.getGlobal("table");
-    L.setField(lib, name, f);
-  }
+    "concat", new TableLib(CONCAT),
+    "create", new TableLib(CREATE),
+    "insert", new TableLib(INSERT),
+    "maxn", new TableLib(MAXN),
+    "move", new TableLib(MOVE),
+    "remove", new TableLib(REMOVE),
+    "sort", new TableLib(SORT),
+  };
 
   /** Implements table.concat. */
   private static int concat(Lua L)
   {
     String sep = L.optString(2, "");
     L.checkType(1, Lua.TTABLE);
+    LuaTable t = (LuaTable)L.value(1);
     int i = L.optInt(3, 1);
-    int last = L.optInt(4, L.objLen(L.value(1)));
-    StringBuffer b = new StringBuffer();
-    Object t = L.value(1);
-    for (; i <= last; ++i)
+    int last = L.optInt(4, L.objLen(t));
+    if (i > last)
+    {
+      L.pushLiteral("");
+      return 1;
+    }
+    int n = last - i + 1;
+    L.argCheck(n > 0, 4, "too many elements to concatenate");
+    // First pass: check the elements and work out the length of the
+    // result.  Integers are left as Double and appended directly in the
+    // second pass, other numbers are converted to strings here.  The
+    // array grows as elements are checked, so a bogus range fails on
+    // its first missing element instead of allocating for all of it.
+    Object[] a = new Object[Math.min(n, 16)];
+    long len = (long)sep.length() * (n-1);
+    for (int k=0; k<n; ++k)
+    {
+      if (k == a.length)
+      {
+        Object[] na = new Object[Math.min(n, 2*k)];
+        System.arraycopy(a, 0, na, 0, k);
+        a = na;
+      }
+      Object v = t.getnum(i+k);
+      if (v instanceof Double)
+      {
+        double d = ((Double)v).doubleValue();
+        long m = (long)d;
+        if (m == d && m > -INTLIMIT && m < INTLIMIT && (m != 0 || 1/d > 0))
+        {
+          len += digits(m);
+        }
+        else
+        {
+          v = L.toString(v);
+          len += ((String)v).length();
+        }
+      }
+      else
+      {
+        L.argCheck(v instanceof String, 1, "table contains non-strings");
+        len += ((String)v).length();
+      }
+      a[k] = v;
+    }
+    if (len > Integer.MAX_VALUE)
     {
-      Object v = L.rawGetI(t, i);
-      L.argCheck(L.isString(v), 1, "table contains non-strings");
-      b.append(L.toString(v));
-      if (i != last)
-        b.append(L.toString(sep));
+      L.error("string length overflow");
+    }
+    // Second pass: fill a buffer of exactly the right size.
+    StringBuffer b = new StringBuffer((int)len);
+    boolean hassep = sep.length() > 0;
+    for (int k=0; k<n; ++k)
+    {
+      if (hassep && k > 0)
+      {
+        b.append(sep);
+      }
+      Object v = a[k];
+      if (v instanceof Double)
+      {
+        b.append((long)((Double)v).doubleValue());
+      }
+      else
+      {
+        b.append((String)v);
+      }
     }
     L.pushString(b.toString());
     return 1;
   }
 
+  /**
+   * Integers smaller than this in magnitude have at most 14 digits, so
+   * "%.14g" formats them exactly like Java formats a long.
+   */
+  private static final long INTLIMIT = 100000000000000L;
+
+  /** Number of characters in the decimal form of <var>m</var>. */
+  private static int digits(long m)
+  {
+    int r = 1;
+    if (m < 0)
+    {
+      ++r;
+      m = -m;
+    }
+    while (m >= 10)
+    {
+      m /= 10;
+      ++r;
+    }
+    return r;
+  }
+
   /** Implements table.insert. */
   private static int insert(Lua L)
   {
     int e = aux_getn(L, 1) + 1; // first empty element
     int pos;    // where to insert new element
-    Object t = L.value(1);
+    LuaTable t = (LuaTable)L.value(1);
     switch (L.getTop())
     {
       case 2:   // called with only 2 arguments
@@ -138,15 +223,11 @@ public final class TableLib extends LuaJavaCallback
 
       case 3:
         {
-          int i;
           pos = L.checkInt(2);  // 2nd argument is the position
           if (pos > e)
             e = pos;    // grow array if necessary
-          for (i = e; i > pos; --i)     // move up elements
-          {
-            // t[i] = t[i-1]
-            L.rawSetI(t, i, L.rawGetI(t, i-1));
-          }
+          // move up elements: t[pos+1..e] = t[pos..e-1]
+          LuaTable.move(L, t, pos, e-1, pos+1, t);
         }
         break;
 
@@ -185,17 +266,60 @@ public final class TableLib extends LuaJavaCallback
     int pos = L.optInt(2, e);
     if (e == 0)
       return 0;         // table is 'empty'
-    Object t = L.value(1);
+    LuaTable t = (LuaTable)L.value(1);
     Object o = L.rawGetI(t, pos);       // result = t[pos]
-    for ( ;pos<e; ++pos)
-    {
-      L.rawSetI(t, pos, L.rawGetI(t, pos+1));   // t[pos] = t[pos+1]
-    }
+    LuaTable.move(L, t, pos+1, e, pos, t); // t[pos..e-1] = t[pos+1..e]
     L.rawSetI(t, e, Lua.NIL);   // t[e] = nil
     L.push(o);
     return 1;
   }
 
+  /**
+   * Implements table.move, as in Lua 5.3: <code>table.move(a1, f, e,
+   * t [,a2])</code> copies <code>a1[f..e]</code> to
+   * <code>a2[t..]</code> and returns <var>a2</var> (which defaults to
+   * <var>a1</var>).  Metamethods are not used.
+   */
+  private static int move(Lua L)
+  {
+    L.checkType(1, Lua.TTABLE);
+    int f = L.checkInt(2);
+    int e = L.checkInt(3);
+    int t = L.checkInt(4);
+    int tt = 1;         // destination table
+    if (!L.isNoneOrNil(5))
+    {
+      L.checkType(5, Lua.TTABLE);
+      tt = 5;
+    }
+    if (e >= f)
+    {
+      L.argCheck(f > 0 || e < Integer.MAX_VALUE + f, 3,
+          "too many elements to move");
+      L.argCheck(t <= Integer.MAX_VALUE - (e - f), 4,
+          "destination wrap around");
+      LuaTable.move(L, (LuaTable)L.value(1), f, e, t, (LuaTable)L.value(tt));
+    }
+    L.pushValue(tt);
+    return 1;
+  }
+
+  /**
+   * Implements table.create: <code>table.create(narr [,nrec])</code>
+   * returns an empty table with room for <var>narr</var> array
+   * elements and <var>nrec</var> other fields, see {@link
+   * Lua#createTable}.
+   */
+  private static int create(Lua L)
+  {
+    int narr = L.checkInt(1);
+    int nrec = L.optInt(2, 0);
+    L.argCheck(narr >= 0, 1, "size out of range");
+    L.argCheck(nrec >= 0, 2, "size out of range");
+    L.push(L.createTable(narr, nrec));
+    return 1;
+  }
+
   /** Implements table.sort. */
   private static int sort(Lua L)
   {
@@ -203,50 +327,107 @@ public final class TableLib extends LuaJavaCallback
     if (!L.isNoneOrNil(2))      // is there a 2nd argument?
       L.checkType(2, Lua.TFUNCTION);
     L.setTop(2);        // make sure there is two arguments
-    auxsort(L, 1, n);
+    // The elements are sorted in a Java array and then stored back as
+    // the table's array part.
+    LuaTable t = (LuaTable)L.value(1);
+    Object[] a = new Object[n];
+    for (int i=0; i<n; ++i)
+    {
+      a[i] = t.getnum(i+1);
+    }
+    Object f = L.value(2);
+    int mode = SORT_CALL;
+    if (L.isNil(f))
+    {
+      f = null;
+      mode = sortmode(a);
+    }
+    auxsort(L, a, 0, n-1, mode, f);
+    t.putarray(L, a, n);
     return 0;
   }
 
-  static void auxsort(Lua L, int l, int u)
+  // How auxsort compares elements.
+  /** Calls the order function. */
+  private static final int SORT_CALL = 0;
+  /** Uses Lua's &lt; operator, {@link Lua#lessThan}. */
+  private static final int SORT_LT = 1;
+  /** All the elements are numbers. */
+  private static final int SORT_NUMBER = 2;
+  /** All the elements are strings. */
+  private static final int SORT_STRING = 3;
+
+  /**
+   * Picks the comparison for sorting <var>a</var> without an order
+   * function.  When every element is a number, or every element is a
+   * string, they are compared directly rather than through the VM.
+   */
+  private static int sortmode(Object[] a)
+  {
+    if (a.length == 0)
+    {
+      return SORT_LT;
+    }
+    Class c = a[0].getClass();
+    if (c != Double.class && c != String.class)
+    {
+      return SORT_LT;
+    }
+    for (int i=1; i<a.length; ++i)
+    {
+      if (a[i].getClass() != c)
+      {
+        return SORT_LT;
+      }
+    }
+    return c == Double.class ? SORT_NUMBER : SORT_STRING;
+  }
+
+  /**
+   * Sorts <var>a</var>[<var>l</var>..<var>u</var>] using the same
+   * quicksort as PUC-Rio's <code>auxsort</code>.
+   * @param mode  one of the SORT_ values.
+   * @param f     the order function, for <code>SORT_CALL</code>.
+   */
+  private static void auxsort(Lua L, Object[] a, int l, int u, int mode,
+      Object f)
   {
-    Object t = L.value(1);
     while (l < u)       // for tail recursion
     {
       int i;
       int j;
       // sort elements a[l], a[l+u/2], and a[u]
-      Object o1 = L.rawGetI(t, l);
-      Object o2 = L.rawGetI(t, u);
-      if (sort_comp(L, o2, o1)) // a[u] < a[l]?
+      Object o1 = a[l];
+      Object o2 = a[u];
+      if (sort_comp(L, mode, f, o2, o1)) // a[u] < a[l]?
       {
-        L.rawSetI(t, l, o2);
-        L.rawSetI(t, u, o1);
+        a[l] = o2;
+        a[u] = o1;
       }
       if (u-l == 1)
         break;  // only 2 elements
       i = (l+u)/2;
-      o1 = L.rawGetI(t, i);
-      o2 = L.rawGetI(t, l);
-      if (sort_comp(L, o1, o2)) // a[i]<a[l]?
+      o1 = a[i];
+      o2 = a[l];
+      if (sort_comp(L, mode, f, o1, o2)) // a[i]<a[l]?
       {
-        L.rawSetI(t, i, o2);
-        L.rawSetI(t, l, o1);
+        a[i] = o2;
+        a[l] = o1;
       }
       else
       {
-        o2 = L.rawGetI(t, u);
-        if (sort_comp(L, o2, o1))       // a[u]<a[i]?
+        o2 = a[u];
+        if (sort_comp(L, mode, f, o2, o1))       // a[u]<a[i]?
         {
-          L.rawSetI(t, i, o2);
-          L.rawSetI(t, u, o1);
+          a[i] = o2;
+          a[u] = o1;
         }
       }
       if (u-l == 2)
         break;  // only 3 elements
-      final Object p = L.rawGetI(t, i); // Pivot
-      o2 = L.rawGetI(t, u-1);
-      L.rawSetI(t, i, o2);
-      L.rawSetI(t, u-1, p);
+      final Object p = a[i]; // Pivot
+      a[i] = a[u-1];
+      a[u-1] = p;
       // a[l] <= P == a[u-1] <= a[u], only need to sort from l+1 to u-2
       i = l;
       j = u-1;
@@ -256,30 +437,31 @@ public final class TableLib extends LuaJavaCallback
         // repeat ++i until a[i] >= P
         while (true)
         {
-          o1 = L.rawGetI(t, ++i);
-          if (!sort_comp(L, o1, p))
+          o1 = a[++i];
+          if (!sort_comp(L, mode, f, o1, p))
             break;
-          if (i>u)
+          // a[u] >= P, so a consistent order never gets this far.
+          if (i >= u)
             L.error("invalid order function for sorting");
         }
         // repreat --j until a[j] <= P
         while (true)
         {
-          o2 = L.rawGetI(t, --j);
-          if (!sort_comp(L, p, o2))
+          o2 = a[--j];
+          if (!sort_comp(L, mode, f, p, o2))
             break;
-          if (j<l)
+          if (j <= l)
             L.error("invalid order function for sorting");
         }
         if (j < i)
           break;
-        L.rawSetI(t, i, o2);
-        L.rawSetI(t, j, o1);
+        a[i] = o2;
+        a[j] = o1;
       }
-      o1 = L.rawGetI(t, u-1);
-      o2 = L.rawGetI(t, i);
-      L.rawSetI(t, u-1, o2);
-      L.rawSetI(t, i, o1);      // swap pivot (a[u-1]) with a[i]
+      // swap pivot (a[u-1]) with a[i] to satisfy pred.
+      o1 = a[u-1];
+      a[u-1] = a[i];
+      a[i] = o1;
       // a[l..i-1 <= a[i] == P <= a[i+1..u]
       // adjust so that smaller half is in [j..i] and larger one in [l..u]
       if (i-l < u-i)
@@ -294,25 +476,27 @@ public final class TableLib extends LuaJavaCallback
         i=u;
         u=j-2;
       }
-      auxsort(L, j, i); // call recursively the smaller one
+      auxsort(L, a, j, i, mode, f); // call recursively the smaller one
     } // repeat the routine for the larger one
   }
 
-  private static boolean sort_comp(Lua L, Object a, Object b)
+  private static boolean sort_comp(Lua L, int mode, Object f,
+      Object a, Object b)
   {
-    if (!L.isNil(L.value(2)))   // function?
-    {
-      L.pushValue(2);
-      L.push(a);
-      L.push(b);
-      L.call(2, 1);
-      boolean res = L.toBoolean(L.value(-1));
-      L.pop(1);
-      return res;
-    }
-    else        // a < b?
+    switch (mode)
     {
-      return L.lessThan(a, b);
+      case SORT_NUMBER:
+        return ((Double)a).doubleValue() < ((Double)b).doubleValue();
+
+      case SORT_STRING:
+        // Same as Lua's < on strings.
+        return ((String)a).compareTo((String)b) < 0;
+
+      case SORT_LT:
+        return L.lessThan(a, b);
+
+      default:
+        return L.callTest(f, a, b);
     }
   }
 